@@ -18,8 +18,17 @@ package org.gameontext.player;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 import java.time.temporal.ChronoUnit;
 
@@ -31,22 +40,36 @@ import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.GenericEntity;
+import javax.ws.rs.core.Link;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
 import org.ektorp.CouchDbConnector;
+import org.ektorp.StreamingViewResult;
 import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.gameontext.player.control.LastKnownGood;
 import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerCache;
+import org.gameontext.player.control.PlayerStore;
+import org.gameontext.player.control.RoomOccupancyIndex;
 import org.gameontext.player.entity.ErrorResponse;
 import org.gameontext.player.entity.PlayerArgument;
+import org.gameontext.player.entity.PlayerCodecs;
 import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
 import org.gameontext.player.entity.PlayerResponse;
+import org.gameontext.player.utils.Log;
 import org.gameontext.player.utils.SharedSecretGenerator;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
 
@@ -54,11 +77,20 @@ import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.eclipse.microprofile.metrics.annotation.Metered;
 import org.eclipse.microprofile.metrics.annotation.Counted;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.faulttolerance.CircuitBreaker;
 import org.eclipse.microprofile.faulttolerance.Fallback;
 import org.eclipse.microprofile.faulttolerance.Retry;
 import org.eclipse.microprofile.faulttolerance.Timeout;
+import org.eclipse.microprofile.faulttolerance.exceptions.CircuitBreakerOpenException;
 import org.eclipse.microprofile.opentracing.Traced;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.undertow.server.HttpServerExchange;
+import io.undertow.servlet.handlers.ServletRequestContext;
+
 /**
  * All the players, and searching for players.
  *
@@ -66,31 +98,68 @@ import org.eclipse.microprofile.opentracing.Traced;
 @Path("/accounts")
 @Api( tags = {"players"})
 public class AllPlayersResource {
+
+    /** players written per location join while streaming the full list */
+    private static final int STREAM_CHUNK = 100;
+
     @Context
     HttpServletRequest httpRequest;
 
+    @Context
+    UriInfo uriInfo;
+
     @Inject
     protected CouchDbConnector db;
 
+    @Inject
+    protected PlayerStore store;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @Inject
+    protected PlayerCache cache;
+
+    @Inject
+    protected RoomOccupancyIndex index;
+
+    @Inject
+    protected LastKnownGood lastKnownGood;
+
     @ConfigProperty(name = "SYSTEM_ID", defaultValue = "x")
     String systemId;
 
+    @ConfigProperty(name = "ACCOUNTS_MAX_PAGE_SIZE", defaultValue = "500")
+    int maxPageSize;
+
+    @ConfigProperty(name = "ACCOUNTS_STREAMING", defaultValue = "true")
+    boolean streaming;
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new PlayerCodecs());
+
     /**
      * GET /players/v1/accounts
      */
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @ApiOperation(value = "List all players",
-        notes = "Get a list of registered players. Use link headers for pagination.",
+        notes = "Get a list of registered players. Use link headers for pagination, "
+               +"passing limit and/or start returns a single page, with a rel=\"next\" link when more players remain. "
+               +"Passing ids returns just those players (ids that don't exist are left out), "
+               +"with credentials only for the caller's own player.",
         response = PlayerResponse.class,
         responseContainer = "List")
     @ApiResponses(value = {
         @ApiResponse(code = 200, message = Messages.SUCCESSFUL, response = PlayerResponse.class),
-        @ApiResponse(code = 204, message = Messages.CONFLICT, response=ErrorResponse.class)
+        @ApiResponse(code = 204, message = Messages.CONFLICT, response=ErrorResponse.class),
+        @ApiResponse(code = HttpServletResponse.SC_BAD_REQUEST, message = Messages.BAD_PAGE, response=ErrorResponse.class),
+        @ApiResponse(code = HttpServletResponse.SC_SERVICE_UNAVAILABLE, message = Messages.UNAVAILABLE, response=ErrorResponse.class)
     })
-    @Fallback(fallbackMethod = "getAllPlayersFallback")
+    @Fallback(fallbackMethod = "getAllPlayersFallback", skipOn = PlayerAccountModificationException.class)
+    @CircuitBreaker(requestVolumeThreshold = 20, failureRatio = 0.5, delay = 5000, successThreshold = 2,
+        skipOn = PlayerAccountModificationException.class)
     @Timeout(value = 2, unit = ChronoUnit.SECONDS)
-    @Retry(maxRetries = 2, maxDuration= 10000)
+    @Retry(maxRetries = 2, maxDuration= 10000, abortOn = {PlayerAccountModificationException.class, CircuitBreakerOpenException.class})
     @Timed(name = "getAllPlayers_timer",
         tags = "label=allPlayersResource")
     @Counted(name = "getAllPlayers_count",
@@ -98,19 +167,33 @@ public class AllPlayersResource {
     @Metered(name = "getAllPlayers_meter",
         tags = "label=allPlayersResource")
     @Traced(value = true, operationName = "getAllPlayers.response")
-    public Response getAllPlayers() throws IOException {
+    public Response getAllPlayers(
+            @ApiParam(value = "max players per page, capped by the server", required = false) @QueryParam("limit") Integer limit,
+            @ApiParam(value = "cursor from a previous page's next link", required = false) @QueryParam("start") String start,
+            @ApiParam(value = "comma separated player ids to fetch", required = false) @QueryParam("ids") String ids) throws IOException {
         try{
-            ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true);
-            List<PlayerDbRecord> results = db.queryView(all, PlayerDbRecord.class);
+            String key = LastKnownGood.key("accounts", limit, start, ids);
+            if ( ids != null ) {
+                return getPlayers(ids, key);
+            }
+            // pages and streaming read the couchdb view directly, other stores page over listAll
+            if ( limit != null || start != null ) {
+                return store.isCouchDb() ? getPlayerPage(limit, start, key) : getListedPage(limit, start, key);
+            }
+            if ( store.isCouchDb() && streaming ) {
+                return streamAllPlayers();
+            }
+
+            List<PlayerDbRecord> results = store.listAll();
             if ( results.isEmpty() )
                 return Response.noContent().build();
             else {
                 List<PlayerResponse> prs = results.stream()
-                        .map(record -> {PlayerResponse pr = new PlayerResponse(record); pr.setCredentials(null); return pr;})
+                        .map(this::redacted)
                         .collect(Collectors.toList());
 
-                // TODO -- this should be done better. Stream, something.
                 GenericEntity<List<PlayerResponse>> entity = new GenericEntity<List<PlayerResponse>>(prs) {};
+                lastKnownGood.record(key, entity);
 
                 return Response.ok().entity(entity).build();
             }
@@ -120,20 +203,247 @@ public class AllPlayersResource {
         }
     }
     
-    public Response getAllPlayersFallback() {
+    /**
+     * Write every player to the response as they are read from the view,
+     * so memory use doesn't grow with the number of players, and the client
+     * starts receiving data before the view has been fully read.
+     *
+     * The 200 is sent before the players are, so a failure part way can't become an
+     * error response. Instead the connection is closed without ending the array, and
+     * the client sees a truncated response rather than what looks like the full list.
+     */
+    private Response streamAllPlayers() {
+        ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true);
+        StreamingViewResult result = db.queryForStreamingView(all);
+        Iterator<ViewResult.Row> rows = result.iterator();
+        if ( !rows.hasNext() ) {
+            result.close();
+            return Response.noContent().build();
+        }
+
+        // the body is written after this returns, when the request context may no longer be current
+        ServletRequestContext context = ServletRequestContext.current();
+        HttpServerExchange exchange = context == null ? null : context.getExchange();
+        StreamingOutput body = output -> {
+            try (JsonGenerator generator = mapper.getFactory().createGenerator(output)) {
+                generator.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+                // closing the generator on a failure must not end the array
+                generator.configure(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT, false);
+                generator.writeStartArray();
+                List<PlayerDbRecord> chunk = new ArrayList<PlayerDbRecord>(STREAM_CHUNK);
+                while ( rows.hasNext() ) {
+                    ViewResult.Row row = rows.next();
+                    if ( !PlayerLocationRecord.isLocationId(row.getId()) ) {
+                        chunk.add(mapper.treeToValue(row.getDocAsNode(), PlayerDbRecord.class));
+                    }
+                    if ( chunk.size() == STREAM_CHUNK || !rows.hasNext() ) {
+                        // with split locations, one read of the location documents per chunk
+                        for (PlayerDbRecord record : records.joinLocations(chunk)) {
+                            generator.writeObject(redacted(record));
+                        }
+                        chunk.clear();
+                    }
+                }
+                generator.writeEndArray();
+            } catch (IOException | RuntimeException e) {
+                Log.log(Level.WARNING, this, "Streaming the player list failed part way, aborting the response", e);
+                if ( exchange != null ) {
+                    exchange.close();
+                }
+                throw e;
+            } finally {
+                result.close();
+            }
+        };
+        return Response.ok(body, MediaType.APPLICATION_JSON).build();
+    }
+
+    /**
+     * Fetch the given players, from the cache where we can and with one
+     * _all_docs?keys= read for the rest.
+     */
+    private Response getPlayers(String ids, String key) {
+        Set<String> wanted = new LinkedHashSet<String>();
+        for (String id : ids.split(",")) {
+            if ( !id.trim().isEmpty() ) {
+                wanted.add(id.trim());
+            }
+        }
+        if ( wanted.isEmpty() || wanted.size() > maxPageSize ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.BAD_REQUEST,
+                    Messages.BAD_BATCH,
+                    "ids must list between 1 and " + maxPageSize + " player ids");
+        }
+
+        Map<String,PlayerDbRecord> found = new HashMap<String,PlayerDbRecord>();
+        List<String> missing = new ArrayList<String>();
+        for (String id : wanted) {
+            PlayerDbRecord cached = cache.get(id);
+            if ( cached != null ) {
+                found.put(id, cached);
+            } else {
+                missing.add(id);
+            }
+        }
+        if ( !missing.isEmpty() ) {
+            long loadStarted = System.nanoTime();
+            for (PlayerDbRecord p : store.getAll(missing)) {
+                cache.put(p, loadStarted);
+                found.put(p.getId(), p);
+            }
+        }
+
+        // set by the auth filter.
+        String authId = (String) httpRequest.getAttribute("player.id");
+
         List<PlayerResponse> prs = new ArrayList<PlayerResponse>();
-        PlayerResponse pr = new PlayerResponse();
-        pr.setCredentials(null); 
-        pr.setName("null");
-        pr.setFavoriteColor("null");
-        pr.setLocation(null);
-        pr.setId("null");
-        pr.setRev("null");
-        prs.add(pr);
+        List<PlayerResponse> shared = new ArrayList<PlayerResponse>();
+        for (String id : wanted) {
+            PlayerDbRecord p = found.get(id);
+            if ( p != null ) {
+                PlayerResponse pr = new PlayerResponse(p);
+                if ( stripSensitiveData(authId, id) ) {
+                    pr.setCredentials(null);
+                }
+                prs.add(pr);
+                shared.add(redacted(p));
+            }
+        }
+        if ( prs.isEmpty() )
+            return Response.noContent().build();
+
+        // stale copies are served to anyone, so they never carry credentials
+        lastKnownGood.record(key, new GenericEntity<List<PlayerResponse>>(shared) {});
+
         GenericEntity<List<PlayerResponse>> entity = new GenericEntity<List<PlayerResponse>>(prs) {};
         return Response.ok().entity(entity).build();
     }
 
+    /**
+     * Fetch one page of players, asking the view for one extra row so we know
+     * where the next page starts without a second query or a skip.
+     */
+    private Response getPlayerPage(Integer limit, String start, String key) throws IOException {
+        int size = pageSize(limit);
+
+        ViewQuery page = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true).limit(size + 1);
+        if ( start != null ) {
+            JsonNode cursor = decodeCursor(start);
+            page.rawStartKey(cursor.get(0).toString()).startDocId(cursor.get(1).asText());
+        }
+
+        List<ViewResult.Row> rows = db.queryView(page).getRows();
+        if ( rows.isEmpty() )
+            return Response.noContent().build();
+
+        List<PlayerDbRecord> players = new ArrayList<PlayerDbRecord>();
+        for (ViewResult.Row row : rows.subList(0, Math.min(size, rows.size()))) {
+            if ( !PlayerLocationRecord.isLocationId(row.getId()) ) {
+                players.add(mapper.treeToValue(row.getDocAsNode(), PlayerDbRecord.class));
+            }
+        }
+        List<PlayerResponse> prs = records.joinLocations(players).stream()
+                .map(this::redacted)
+                .collect(Collectors.toList());
+
+        return page(prs, size, rows.size() > size ? encodeCursor(rows.get(size).getKeyAsNode(), rows.get(size).getId()) : null, key);
+    }
+
+    /**
+     * Page over listAll, for stores without the couchdb view. Players are ordered by id,
+     * and the cursor has the same form, with the id as the key.
+     */
+    private Response getListedPage(Integer limit, String start, String key) {
+        int size = pageSize(limit);
+        List<PlayerDbRecord> all = new ArrayList<PlayerDbRecord>(store.listAll());
+        all.sort(Comparator.comparing(PlayerDbRecord::getId));
+
+        int from = 0;
+        if ( start != null ) {
+            String startId = decodeCursor(start).get(1).asText();
+            while ( from < all.size() && all.get(from).getId().compareTo(startId) < 0 ) {
+                from++;
+            }
+        }
+        if ( from >= all.size() )
+            return Response.noContent().build();
+
+        int to = Math.min(all.size(), from + size);
+        List<PlayerResponse> prs = all.subList(from, to).stream()
+                .map(this::redacted)
+                .collect(Collectors.toList());
+        String next = null;
+        if ( to < all.size() ) {
+            String nextId = all.get(to).getId();
+            next = encodeCursor(mapper.getNodeFactory().textNode(nextId), nextId);
+        }
+        return page(prs, size, next, key);
+    }
+
+    private int pageSize(Integer limit) {
+        int size = limit == null ? maxPageSize : Math.min(limit, maxPageSize);
+        if ( size < 1 ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.BAD_REQUEST,
+                    Messages.BAD_PAGE,
+                    "limit must be at least 1");
+        }
+        return size;
+    }
+
+    /** respond with one page, and a next link if 'next' (the cursor of the following page) is set */
+    private Response page(List<PlayerResponse> prs, int size, String next, String key) {
+        GenericEntity<List<PlayerResponse>> entity = new GenericEntity<List<PlayerResponse>>(prs) {};
+        Response.ResponseBuilder response = Response.ok().entity(entity);
+
+        Link[] links = new Link[0];
+        if ( next != null ) {
+            URI uri = uriInfo.getRequestUriBuilder()
+                    .replaceQueryParam("limit", size)
+                    .replaceQueryParam("start", next)
+                    .build();
+            links = new Link[] { Link.fromUri(uri).rel("next").build() };
+        }
+        lastKnownGood.record(key, entity, links);
+        return response.links(links).build();
+    }
+
+    /** cursor is the base64url encoded json array [viewKey, docId] of the first row of the page */
+    private String encodeCursor(JsonNode viewKey, String docId) {
+        String json = mapper.createArrayNode().add(viewKey).add(docId).toString();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private JsonNode decodeCursor(String start) {
+        try {
+            JsonNode cursor = mapper.readTree(Base64.getUrlDecoder().decode(start));
+            if ( cursor.isArray() && cursor.size() == 2 && cursor.get(1).isTextual() ) {
+                return cursor;
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            // fall through to the bad request below
+        }
+        throw new PlayerAccountModificationException(
+                Response.Status.BAD_REQUEST,
+                Messages.BAD_PAGE,
+                "start is not a cursor from a next link");
+    }
+
+    private PlayerResponse redacted(PlayerDbRecord record) {
+        PlayerResponse pr = new PlayerResponse(record);
+        pr.setCredentials(null);
+        return pr;
+    }
+
+    /**
+     * The database is slow or unreachable, serve the last good response for the same
+     * request (without credentials) marked as stale, or 503 if we don't have one.
+     */
+    public Response getAllPlayersFallback(Integer limit, String start, String ids) {
+        return lastKnownGood.stale(LastKnownGood.key("accounts", limit, start, ids));
+    }
+
     /**
      * POST /players/v1/accounts
      */
@@ -185,7 +495,8 @@ public class AllPlayersResource {
         }        
 
         // NOTE: Thrown exceptions are mapped (see ErrorResponseMapper)
-        db.create(pFull);
+        store.create(pFull);
+        index.move(pFull.getId(), pFull.getLocation(), pFull.getRev());
 
         PlayerResponse pr = new PlayerResponse(pFull);
 
@@ -0,0 +1,134 @@
+package org.gameontext.player;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.control.PlayerCache;
+import org.gameontext.player.control.ResponseBytesCache;
+import org.gameontext.player.control.VerifiedTokenCache;
+import org.gameontext.player.control.VerifiedTokenCache.Verified;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocation;
+import org.gameontext.player.entity.PlayerResponse;
+
+import io.netty.buffer.Unpooled;
+import io.quarkus.vertx.web.Route;
+import io.quarkus.vertx.web.Route.HttpMethod;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Reads of a single player (GET /accounts/{id} and /accounts/{id}/location) that
+ * can be answered from PlayerCache and ResponseBytesCache, served on the event loop
+ * without going through the servlet stack and a worker thread.
+ *
+ * Anything else is passed on to PlayerAccountResource, which answers the same way:
+ * a player that isn't cached, a token that hasn't been verified already (checking a
+ * signature is left to PlayerFilter), a query string (the token may be in it), or
+ * the response cache being off.
+ */
+@ApplicationScoped
+public class CachedPlayerRoutes {
+
+    private static final String JWT_HEADER = "gameon-jwt";
+
+    @Inject
+    protected PlayerCache cache;
+
+    @Inject
+    protected ResponseBytesCache responses;
+
+    @Inject
+    protected VerifiedTokenCache verifiedTokens;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @ConfigProperty( name = "SYSTEM_ID", defaultValue = "x")
+    String systemId;
+
+    private final AtomicLong served = new AtomicLong();
+
+    @Route(path = PlayerApplication.API_ROOT + "/accounts/:id", methods = HttpMethod.GET, produces = MediaType.APPLICATION_JSON)
+    public void getPlayerInformation(RoutingContext rc) {
+        String query = rc.request().query();
+        List<String> tokens = rc.request().headers().getAll(JWT_HEADER);
+        if ( (query != null && !query.isEmpty()) || tokens.size() > 1 ) {
+            rc.next();
+            return;
+        }
+        Object authId = null;
+        String token = tokens.isEmpty() ? null : tokens.get(0);
+        if ( token != null && !token.isEmpty() ) {
+            Verified verified = verifiedTokens.get(token);
+            if ( verified == null ) {
+                rc.next();
+                return;
+            }
+            authId = verified.playerId;
+        }
+        String id = rc.pathParam("id");
+        boolean redact = PlayerAccountResource.unauthorizedId(authId, id, systemId);
+        respond(rc, id, redact ? PlayerAccountResource.REDACTED : PlayerAccountResource.CREDENTIALED, p -> {
+            PlayerResponse pr = new PlayerResponse(p);
+            if ( redact ) {
+                pr.setCredentials(null);
+            }
+            return pr;
+        });
+    }
+
+    @Route(path = PlayerApplication.API_ROOT + "/accounts/:id/location", methods = HttpMethod.GET, produces = MediaType.APPLICATION_JSON)
+    public void getPlayerLocation(RoutingContext rc) {
+        String query = rc.request().query();
+        if ( query != null && !query.isEmpty() ) {
+            rc.next();
+            return;
+        }
+        respond(rc, rc.pathParam("id"), PlayerAccountResource.LOCATION, p -> {
+            PlayerLocation location = new PlayerLocation();
+            location.setLocation(p.getLocation());
+            return location;
+        });
+    }
+
+    /**
+     * Answer as PlayerAccountResource would for a cached record, or pass the request on.
+     */
+    private void respond(RoutingContext rc, String id, String variant, Function<PlayerDbRecord, Object> view) {
+        PlayerDbRecord p = responses.isEnabled() ? cache.get(id) : null;
+        if ( p == null ) {
+            rc.next();
+            return;
+        }
+        EntityTag tag = PlayerAccountResource.entityTag(p.getRev(), p.getLocation(), variant, records.isLocationRevisioned());
+        String etag = "\"" + tag.getValue() + "\"";
+        served.incrementAndGet();
+        if ( PlayerAccountResource.matches(rc.request().getHeader(HttpHeaders.IF_NONE_MATCH), tag) ) {
+            rc.response().setStatusCode(304).putHeader(HttpHeaders.ETAG, etag).end();
+            return;
+        }
+        ByteBuffer body = responses.encoded(id, variant, tag.getValue(), () -> view.apply(p));
+        rc.response()
+            .putHeader(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON)
+            .putHeader(HttpHeaders.ETAG, etag)
+            .end(Buffer.buffer(Unpooled.wrappedBuffer(body)));
+    }
+
+    @Gauge(name = "cachedRoutes_served", unit = MetricUnits.NONE,
+        tags = "label=cachedPlayerRoutes")
+    public long getServedCount() {
+        return served.get();
+    }
+}
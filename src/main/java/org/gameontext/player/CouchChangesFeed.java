@@ -0,0 +1,186 @@
+package org.gameontext.player;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Event;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.changes.ChangesCommand;
+import org.ektorp.changes.ChangesFeed;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.control.PlayerSnapshots;
+import org.gameontext.player.control.PlayerStore;
+import org.gameontext.player.utils.Log;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Follows the couchdb _changes feed for the player database, and fires each
+ * change (including the changed document) as a CDI event, so in-process state
+ * can be kept in step with writes made by other replicas.
+ *
+ * The feed starts from the database's current sequence, or replays from the
+ * sequence of the last snapshot (see PlayerSnapshots) before going live, and
+ * reconnects from the last seen sequence if the connection drops.
+ */
+@ApplicationScoped
+public class CouchChangesFeed {
+
+    private static final int HEARTBEAT_MS = 30000;
+    private static final long RECONNECT_DELAY_MS = 5000;
+    private static final int CATCH_UP_BATCH = 1000;
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected Event<DocumentChange> changes;
+
+    @Inject
+    protected PlayerStore store;
+
+    @Inject
+    protected PlayerSnapshots snapshots;
+
+    @ConfigProperty( name = "COUCHDB_CHANGES_FEED", defaultValue = "true")
+    protected boolean enabled;
+
+    private volatile boolean running = false;
+    private volatile boolean following = false;
+    private volatile String since = "now";
+    private volatile boolean catchingUp = false;
+    private Thread follower;
+
+    void start(@Observes StartupEvent event) {
+        if ( !isEnabled() ) {
+            return;
+        }
+        String restored = snapshots.restore();
+        if ( restored != null ) {
+            since = restored;
+            catchingUp = true;
+        }
+        running = true;
+        follower = new Thread(this::follow, CouchInjector.DB_NAME + "-changes");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    void stop(@Observes ShutdownEvent event) {
+        running = false;
+        if ( follower != null ) {
+            follower.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled && store.isCouchDb();
+    }
+
+    /**
+     * @return true while the feed is connected, any write made after this
+     *   first returns true will be delivered as an event. When resuming from
+     *   a snapshot, this stays false until every change since it has been delivered.
+     */
+    public boolean isFollowing() {
+        return following;
+    }
+
+    /**
+     * @return the sequence of the last change delivered, or 'now' if the feed hasn't connected yet.
+     */
+    public String getSince() {
+        return since;
+    }
+
+    private void follow() {
+        while ( running ) {
+            ChangesFeed feed = null;
+            try {
+                // the connector is only resolved here, so a bad db config can't stop the app starting
+                if ( "now".equals(since) ) {
+                    // a real sequence, so snapshots can be tagged with it before any change arrives
+                    since = db.getDbInfo().getUpdateSeqAsString();
+                }
+                if ( catchingUp && !catchUp() ) {
+                    continue;
+                }
+                feed = db.changesFeed(new ChangesCommand.Builder()
+                        .since(since)
+                        .continuous(true)
+                        .includeDocs(true)
+                        .heartbeat(HEARTBEAT_MS)
+                        .build());
+                following = true;
+                Log.log(Level.FINER, this, "Following changes for {0} since {1}", CouchInjector.DB_NAME, since);
+
+                while ( running && feed.isAlive() ) {
+                    DocumentChange change = feed.next(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                    if ( change != null ) {
+                        // only move on once observers have it, see PlayerSnapshots
+                        changes.fire(change);
+                        since = change.getStringSequence();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                Log.log(Level.WARNING, this, "Lost changes feed, reconnecting", e);
+            } finally {
+                following = false;
+                if ( feed != null ) {
+                    feed.cancel();
+                }
+            }
+
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deliver every change since the snapshot, in batches.
+     * @return false if the changes couldn't be read, and the snapshot was dropped
+     */
+    private boolean catchUp() {
+        int delivered = 0;
+        try {
+            List<DocumentChange> batch;
+            do {
+                batch = db.changes(new ChangesCommand.Builder()
+                        .since(since)
+                        .includeDocs(true)
+                        .limit(CATCH_UP_BATCH)
+                        .build());
+                for (DocumentChange change : batch) {
+                    changes.fire(change);
+                    since = change.getStringSequence();
+                    delivered++;
+                }
+            } while ( running && batch.size() >= CATCH_UP_BATCH );
+            catchingUp = false;
+            snapshots.caughtUp();
+            Log.log(Level.INFO, this, "Replayed {0} changes since the snapshot", delivered);
+            return true;
+        } catch (Exception e) {
+            // can't tell a lost connection from a sequence couchdb no longer knows, so rebuild
+            Log.log(Level.WARNING, this, "Unable to replay changes since the snapshot, rebuilding player state", e);
+            snapshots.discard();
+            catchingUp = false;
+            since = "now";
+            return false;
+        }
+    }
+}
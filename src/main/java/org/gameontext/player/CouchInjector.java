@@ -16,6 +16,9 @@
 package org.gameontext.player;
 
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
 import java.util.logging.Level;
 
 import javax.enterprise.context.ApplicationScoped;
@@ -28,8 +31,12 @@ import org.ektorp.DbAccessException;
 import org.ektorp.http.HttpClient;
 import org.ektorp.http.StdHttpClient;
 import org.ektorp.impl.StdCouchDbInstance;
+import org.ektorp.impl.StdObjectMapperFactory;
+import org.gameontext.player.entity.PlayerCodecs;
 import org.gameontext.player.utils.Log;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 public class CouchInjector {
     @ConfigProperty( name = "COUCHDB_USER", defaultValue = "x")
     protected String username;
@@ -40,25 +47,60 @@ public class CouchInjector {
     @ConfigProperty( name = "COUCHDB_SERVICE_URL", defaultValue = "x")
     protected String url;
 
+    @ConfigProperty( name = "COUCHDB_WRITE_URLS")
+    protected Optional<String> writeUrls;
+
+    @ConfigProperty( name = "COUCHDB_MAX_CONNECTIONS", defaultValue = "20")
+    protected int maxConnections;
+
     public static final String DB_NAME = "playerdb";
 
-    @Produces @ApplicationScoped
-    public CouchDbConnector expose() {
+    /**
+     * @return the node urls in COUCHDB_SERVICE_URL, which may list several comma separated
+     */
+    public static List<String> nodeUrls(String url) {
+        List<String> urls = new ArrayList<>();
+        for (String u : url.split(",")) {
+            if ( !u.trim().isEmpty() ) {
+                urls.add(u.trim());
+            }
+        }
+        return urls;
+    }
 
+    @Produces @ApplicationScoped
+    public CouchDbInstance instance() {
         try {
+            // ektorp talks to one node, as it writes too that's the first write node
             HttpClient authenticatedHttpClient = new StdHttpClient.Builder()
-                    .url(url)
+                    .url(nodeUrls(writeUrls.orElse(url)).get(0))
                     .username(username)
                     .password(password)
+                    .maxConnections(maxConnections)
                     .build();
 
-            CouchDbInstance dbi = new StdCouchDbInstance(authenticatedHttpClient);
+            // ektorp's mappers use the same entity codecs as the rest of the service
+            return new StdCouchDbInstance(authenticatedHttpClient, new StdObjectMapperFactory() {
+                @Override
+                protected void applyDefaultConfiguration(ObjectMapper om) {
+                    super.applyDefaultConfiguration(om);
+                    om.registerModule(new PlayerCodecs());
+                }
+            });
+        } catch (MalformedURLException e) {
+            throw new javax.enterprise.inject.CreationException("Unable to connect to database " + DB_NAME, e);
+        }
+    }
 
+    @Produces @ApplicationScoped
+    public CouchDbConnector expose(CouchDbInstance dbi) {
+
+        try {
             // Connect to the database with the specified
             CouchDbConnector dbc = dbi.createConnector(DB_NAME, false);
             Log.log(Level.FINER, this, "Connected to {0}", DB_NAME);
             return dbc;
-        } catch (DbAccessException | MalformedURLException e) {
+        } catch (DbAccessException e) {
             // throw to prevent this class from going into service,
             // which will prevent injection to the Health check, which will make the app stay down.
             throw new javax.enterprise.inject.CreationException("Unable to connect to database " + DB_NAME, e);
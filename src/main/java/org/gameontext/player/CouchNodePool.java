@@ -0,0 +1,136 @@
+package org.gameontext.player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.core.buffer.Buffer;
+import io.vertx.mutiny.ext.web.client.HttpResponse;
+import io.vertx.mutiny.ext.web.client.WebClient;
+
+/**
+ * A set of couchdb nodes to send requests to (see ReactiveCouchDbClient).
+ *
+ * Nodes are ejected after EJECT_AFTER_FAILURES consecutive failed requests (no response,
+ * a timeout, a 5xx, or cancelled while waiting), or a failed health probe, and are only
+ * reinstated by a probe that succeeds.
+ * If every node in the pool is ejected, all of them are used again rather than none.
+ */
+public class CouchNodePool {
+
+    static final int EJECT_AFTER_FAILURES = 3;
+
+    public static class Node {
+        final String url;
+        final WebClient client;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        volatile boolean healthy = true;
+
+        Node(String url, WebClient client) {
+            this.url = url;
+            this.client = client;
+        }
+
+        /**
+         * Count the request as outstanding on this node until it completes, and eject
+         * the node if its requests keep failing.
+         * @param cancelIsFailure count the request as failed if it is cancelled before it is answered
+         */
+        Uni<HttpResponse<Buffer>> track(Uni<HttpResponse<Buffer>> request, boolean ejecting, boolean cancelIsFailure) {
+            return Uni.createFrom().deferred(() -> {
+                outstanding.incrementAndGet();
+                return request;
+            }).onTermination().invoke(outstanding::decrementAndGet)
+              .onCancellation().invoke(() -> {
+                  if ( cancelIsFailure ) {
+                      failed(ejecting);
+                  }
+              })
+              .onItem().invoke(response -> {
+                  if ( response.statusCode() >= 500 ) {
+                      failed(ejecting);
+                  } else {
+                      failures.set(0);
+                  }
+              })
+              .onFailure().invoke(() -> failed(ejecting));
+        }
+
+        private void failed(boolean ejecting) {
+            if ( failures.incrementAndGet() >= EJECT_AFTER_FAILURES && ejecting ) {
+                healthy = false;
+            }
+        }
+    }
+
+    private final List<Node> nodes;
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    public CouchNodePool(List<Node> nodes) {
+        this.nodes = nodes;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * @return the healthy node with the fewest requests outstanding, other than 'exclude'
+     *   (or null if there is no other node). Ties go to each node in turn.
+     */
+    public Node leastOutstanding(Node exclude) {
+        List<Node> candidates = candidates();
+        int start = Math.floorMod(rotation.getAndIncrement(), candidates.size());
+        Node best = null;
+        for (int i = 0; i < candidates.size(); i++) {
+            Node n = candidates.get((start + i) % candidates.size());
+            if ( n != exclude && (best == null || n.outstanding.get() < best.outstanding.get()) ) {
+                best = n;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the healthy node that requests for the key always go to, while it stays healthy
+     *   (rendezvous hashing, so ejecting a node only moves the keys that were on it)
+     */
+    public Node pinned(String key) {
+        Node best = null;
+        long bestScore = 0;
+        for (Node n : candidates()) {
+            long score = mix(key.hashCode() * 31L + n.url.hashCode());
+            if ( best == null || score > bestScore ) {
+                best = n;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    public long getHealthyCount() {
+        return nodes.stream().filter(n -> n.healthy).count();
+    }
+
+    private List<Node> candidates() {
+        List<Node> healthy = new ArrayList<>(nodes.size());
+        for (Node n : nodes) {
+            if ( n.healthy ) {
+                healthy.add(n);
+            }
+        }
+        return healthy.isEmpty() ? nodes : healthy;
+    }
+
+    /** murmur3's 64 bit finalizer, so similar keys score unrelated nodes highest */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53e94c3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
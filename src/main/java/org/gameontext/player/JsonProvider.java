@@ -20,11 +20,20 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.ext.Provider;
 
+import org.gameontext.player.entity.PlayerCodecs;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 
+/**
+ * The one json provider, entities with codecs in PlayerCodecs are written and read without reflection.
+ */
 @Provider
 @Consumes(MediaType.APPLICATION_JSON)
 @Produces(MediaType.APPLICATION_JSON)
 public class JsonProvider extends JacksonJsonProvider {
 
+    public JsonProvider() {
+        super(new ObjectMapper().registerModule(new PlayerCodecs()));
+    }
 }
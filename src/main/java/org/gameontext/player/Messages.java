@@ -3,9 +3,13 @@ package org.gameontext.player;
 public class Messages {
 
     public static final String SUCCESSFUL = "Successful";
+    public static final String NOT_MODIFIED = "Not modified since the version with the given entity tag";
     
     public static final String NOT_FOUND = "Player not found";
     public static final String CONFLICT = "Save conflict";
+    public static final String BAD_PAGE = "Invalid page request";
+    public static final String BAD_BATCH = "Invalid batch request";
+    public static final String UNAVAILABLE = "Player data is unavailable, try again later";
     
     public static final String FORBIDDEN = "Caller is not authorized to ";
 }
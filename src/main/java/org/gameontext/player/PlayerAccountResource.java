@@ -17,7 +17,11 @@ package org.gameontext.player;
 
 import java.time.temporal.ChronoUnit;
 import java.io.IOException;
-import java.util.logging.Level;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
@@ -25,24 +29,31 @@ import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
-import org.ektorp.CouchDbConnector;
+import org.gameontext.player.control.LocationCasEngine;
 import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerCache;
+import org.gameontext.player.control.PlayerStore;
+import org.gameontext.player.control.ResponseBytesCache;
+import org.gameontext.player.control.RoomOccupancyIndex;
 import org.gameontext.player.entity.ErrorResponse;
 import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationUpdateResult;
 import org.gameontext.player.entity.PlayerArgument;
 import org.gameontext.player.entity.PlayerCredentials;
 import org.gameontext.player.entity.PlayerDbRecord;
 import org.gameontext.player.entity.PlayerLocation;
 import org.gameontext.player.entity.PlayerResponse;
-import org.gameontext.player.utils.Log;
 import org.gameontext.player.utils.SharedSecretGenerator;
 
 import io.swagger.annotations.Api;
@@ -68,8 +79,28 @@ import org.eclipse.microprofile.opentracing.Traced;
 public class PlayerAccountResource {
     private static final String ACCESS_DENIED = "ACCESS_DENIED";
 
+    /** the views of a player record, each has its own entity tags (CachedPlayerRoutes serves them too) */
+    static final String CREDENTIALED = "full";
+    static final String REDACTED = "public";
+    static final String LOCATION = "location";
+
+    @Inject
+    protected PlayerStore store;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @Inject
+    protected LocationCasEngine locations;
+
+    @Inject
+    protected PlayerCache cache;
+
+    @Inject
+    protected RoomOccupancyIndex index;
+
     @Inject
-    protected CouchDbConnector db;
+    protected ResponseBytesCache responses;
 
     //@Inject
     //Kafka kafka;
@@ -84,6 +115,7 @@ public class PlayerAccountResource {
         response = PlayerResponse.class)
     @ApiResponses(value = {
             @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response = PlayerResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_NOT_MODIFIED, message = Messages.NOT_MODIFIED),
             @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response = ErrorResponse.class),
     })
     @Timed(name = "getPlayerInformation_timer",
@@ -95,21 +127,25 @@ public class PlayerAccountResource {
     @Timeout(value = 2, unit = ChronoUnit.SECONDS)
     @Retry(maxRetries = 2, maxDuration= 10000)
     @Traced
-    public PlayerResponse getPlayerInformation(
+    public Response getPlayerInformation(
             @ApiParam(value = "target player id", required = true) @PathParam("id") String id,
+            @ApiParam(value = "entity tag of a copy the caller already has", required = false) @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
             @Context HttpServletRequest httpRequest) throws IOException {
 
         // set by the auth filter.
         String authId = (String) httpRequest.getAttribute("player.id");
+        boolean redact = unauthorizedId(authId, id);
 
-        PlayerDbRecord p = db.get(PlayerDbRecord.class, id); // throws DocumentNotFoundException
-        PlayerResponse pr = new PlayerResponse(p);
+        // waits here, so @Timeout and @Retry cover the read whichever client makes it
+        return records.waitFor(() -> getIfNoneMatch(id, redact ? REDACTED : CREDENTIALED, ifNoneMatch, p -> {
+            PlayerResponse pr = new PlayerResponse(p);
 
-        if (unauthorizedId(authId, id)) {
-            pr.setCredentials(null);
-        }
+            if (redact) {
+                pr.setCredentials(null);
+            }
 
-        return pr;
+            return pr;
+        }));
     }
 
     @PUT
@@ -151,7 +187,8 @@ public class PlayerAccountResource {
                     authId + " is not allowed to update player " + id);
         }
 
-        PlayerDbRecord fullPlayer = db.get(PlayerDbRecord.class, newPlayer.getId());
+        long loadStarted = System.nanoTime();
+        PlayerDbRecord fullPlayer = records.waitFor(() -> store.get(newPlayer.getId()));
 
         if ( httpRequest.getAttribute("player.audience")==null && !httpRequest.getAttribute("player.audience").equals("server")) {
             // Check the "audience" to determine which fields can be updated
@@ -160,7 +197,8 @@ public class PlayerAccountResource {
             fullPlayer.update(newPlayer);
         }
 
-        db.update(fullPlayer);
+        records.waitFor(() -> store.update(fullPlayer));
+        cache.put(fullPlayer, loadStarted);
         //kafka.publishPlayerEvent(PlayerEvent.UPDATE, fullPlayer);
 
         PlayerResponse pr = new PlayerResponse(fullPlayer);
@@ -204,8 +242,9 @@ public class PlayerAccountResource {
                     authId + " is not allowed to delete player " + id);
         }
 
-        PlayerDbRecord p = db.get(PlayerDbRecord.class, id); // throws DocumentNotFoundException
-        db.delete(p);
+        store.delete(id); // throws DocumentNotFoundException
+        cache.invalidate(id);
+        index.remove(id);
 
         //kafka.publishPlayerEvent(PlayerEvent.DELETE, p);
 
@@ -234,7 +273,7 @@ public class PlayerAccountResource {
     @Metered(name = "getPlayerLocation_meter",
         tags = "label=playerAccountResource")
     @Traced
-    public Response updatePlayerLocation(@PathParam("id") String id, LocationChange update,
+    public CompletionStage<Response> updatePlayerLocation(@PathParam("id") String id, LocationChange update,
     @Context HttpServletRequest httpRequest) throws IOException {
         // we don't want to allow this method to be invoked by a user.
         if ( httpRequest.getAttribute("player.audience")==null && !httpRequest.getAttribute("player.audience").equals("server")) {
@@ -244,30 +283,17 @@ public class PlayerAccountResource {
                     "Invalid token type " + httpRequest.getAttribute("player.audience"));
         }
 
-        PlayerDbRecord p = db.get(PlayerDbRecord.class, id);  // throws DocumentNotFoundException
-
-        String oldLocation = update.getOldLocation();
-        String newLocation = update.getNewLocation();
         //String origin = update.getOrigin();
 
-        PlayerLocation finalLocation = new PlayerLocation();
-
-        // try setting to the new location
-        int rc;
-        if (p.getLocation()==null || p.getLocation().equals(oldLocation)) {
-            p.setLocation(newLocation);
-            db.update(p);
-            Log.log(Level.FINEST, this, "{0} moved from {1} to {2}", p.getName(), oldLocation, newLocation);
+        // throws DocumentNotFoundException
+        return locations.move(id, update).thenApply(result -> {
+            PlayerLocation finalLocation = new PlayerLocation();
+            finalLocation.setLocation(result.getLocation());
 
-            rc = HttpServletResponse.SC_OK;
-            finalLocation.setLocation(newLocation);
+            int rc = LocationUpdateResult.OK.equals(result.getStatus()) ? HttpServletResponse.SC_OK : HttpServletResponse.SC_CONFLICT;
             //kafka.publishPlayerEvent(PlayerEvent.UPDATE_LOCATION, p, origin);
-        } else {
-            rc = HttpServletResponse.SC_CONFLICT;
-            finalLocation.setLocation(p.getLocation());
-        }
-
-        return Response.status(rc).entity(finalLocation).build();
+            return Response.status(rc).entity(finalLocation).build();
+        });
     }
 
     @GET
@@ -279,6 +305,7 @@ public class PlayerAccountResource {
         response = PlayerLocation.class)
     @ApiResponses(value = {
             @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL, response=PlayerLocation.class),
+            @ApiResponse(code = HttpServletResponse.SC_NOT_MODIFIED, message = Messages.NOT_MODIFIED),
             @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response=ErrorResponse.class),
     })
     @Timed(name = "getPlayerLocation_timer",
@@ -290,15 +317,15 @@ public class PlayerAccountResource {
     @Timeout(value = 2, unit = ChronoUnit.SECONDS)
     @Retry(maxRetries = 2, maxDuration= 10000)
     @Traced
-    public PlayerLocation getPlayerLocation(
+    public Response getPlayerLocation(
             @ApiParam(value = "target player id", required = true) @PathParam("id") String id,
+            @ApiParam(value = "entity tag of a copy the caller already has", required = false) @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
             @Context HttpServletRequest httpRequest) throws IOException {
-        PlayerDbRecord p;
-        p = db.get(PlayerDbRecord.class, id); // throws DocumentNotFoundException
-
-        PlayerLocation location = new PlayerLocation();
-        location.setLocation(p.getLocation());
-        return location;
+        return records.waitFor(() -> getIfNoneMatch(id, LOCATION, ifNoneMatch, p -> {
+            PlayerLocation location = new PlayerLocation();
+            location.setLocation(p.getLocation());
+            return location;
+        }));
     }
     
 
@@ -318,7 +345,7 @@ public class PlayerAccountResource {
     @Metered(name = "getPlayerCredentials_meter",
         tags = "label=playerAccountResource")
     @Traced
-    public PlayerCredentials getPlayerCredentials(
+    public CompletionStage<PlayerCredentials> getPlayerCredentials(
             @ApiParam(value = "target player id", required = true) @PathParam("id") String id,
             @Context HttpServletRequest httpRequest) throws IOException {
 
@@ -335,11 +362,11 @@ public class PlayerAccountResource {
                     authId + " is not allowed to view requested information");
         }
 
-        PlayerDbRecord p = db.get(PlayerDbRecord.class, id);  // throws DocumentNotFoundException
-
-        PlayerCredentials credentials = new PlayerCredentials();
-        credentials.setSharedSecret(p.getApiKey());
-        return credentials;
+        return getRecord(id).thenApply(p -> {
+            PlayerCredentials credentials = new PlayerCredentials();
+            credentials.setSharedSecret(p.getApiKey());
+            return credentials;
+        });
     }
 
 
@@ -388,12 +415,15 @@ public class PlayerAccountResource {
                     authId + " is not allowed to update player " + id);
         }
 
-        PlayerDbRecord p = db.get(PlayerDbRecord.class, id);  // throws DocumentNotFoundException
+        long loadStarted = System.nanoTime();
+        PlayerDbRecord p = records.waitFor(() -> store.get(id));  // throws DocumentNotFoundException
 
         //if no existing apikey, or apikey exists, but has not been perma-banned..
         if( !ACCESS_DENIED.equals(p.getApiKey())){
             p.setApiKey(SharedSecretGenerator.generateApiKey());
-            db.update(p);
+            records.waitFor(() -> store.update(p));
+            // the location in 'p' is as it was when it was read
+            cache.put(p, loadStarted);
             //kafka.publishPlayerEvent(PlayerEvent.UPDATE_APIKEY, p);
             return Response.ok(p).build();
         }else{
@@ -404,7 +434,94 @@ public class PlayerAccountResource {
         }
     }
 
+    /**
+     * Fetch a player record for reading, from the cache if possible.
+     * The returned record may be shared, and must not be modified.
+     */
+    private CompletionStage<PlayerDbRecord> getRecord(String id) {
+        PlayerDbRecord cached = cache.get(id);
+        if ( cached != null ) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        long loadStarted = System.nanoTime();
+        return store.get(id).thenApply(p -> {
+            cache.put(p, loadStarted);
+            return p;
+        });
+    }
+
+    /**
+     * Respond with a view of the player record, or with 304 if the caller's copy (from If-None-Match)
+     * is still current. When the record isn't cached, the caller's copy is checked against the
+     * revision from a HEAD request, and the record is only read if it has changed.
+     */
+    private CompletionStage<Response> getIfNoneMatch(String id, String variant, String ifNoneMatch, Function<PlayerDbRecord, Object> view) {
+        PlayerDbRecord cached = cache.get(id);
+        if ( cached != null ) {
+            return CompletableFuture.completedFuture(respond(cached, variant, ifNoneMatch, view));
+        }
+        if ( ifNoneMatch != null && store.isCouchDb() && records.isLocationRevisioned() ) {
+            // otherwise the tag needs the location too, so there's nothing to save
+            return records.revision(id).thenCompose(rev -> {
+                EntityTag tag = entityTag(rev, null, variant, true);
+                if ( matches(ifNoneMatch, tag) ) {
+                    return CompletableFuture.completedFuture(Response.notModified(tag).build());
+                }
+                return getRecord(id).thenApply(p -> respond(p, variant, ifNoneMatch, view));
+            });
+        }
+        return getRecord(id).thenApply(p -> respond(p, variant, ifNoneMatch, view));
+    }
+
+    private Response respond(PlayerDbRecord p, String variant, String ifNoneMatch, Function<PlayerDbRecord, Object> view) {
+        EntityTag tag = entityTag(p.getRev(), p.getLocation(), variant, records.isLocationRevisioned());
+        if ( matches(ifNoneMatch, tag) ) {
+            return Response.notModified(tag).build();
+        }
+        if ( responses.isEnabled() ) {
+            // the encoded body for this tag, the view is only built when it isn't held
+            return Response.ok(responses.get(p.getId(), variant, tag.getValue(), () -> view.apply(p)), MediaType.APPLICATION_JSON)
+                    .tag(tag).build();
+        }
+        return Response.ok(view.apply(p)).tag(tag).build();
+    }
+
+    /**
+     * A strong entity tag for one view of a player record. The revision covers the whole record,
+     * except for the location when that is kept in its own document or written behind, so then the location is added.
+     */
+    static EntityTag entityTag(String rev, String location, String variant, boolean locationRevisioned) {
+        StringBuilder tag = new StringBuilder(rev).append('-').append(variant);
+        if ( !locationRevisioned ) {
+            tag.append('-').append(location == null ? "" :
+                Base64.getUrlEncoder().withoutPadding().encodeToString(location.getBytes(StandardCharsets.UTF_8)));
+        }
+        return new EntityTag(tag.toString());
+    }
+
+    /** If-None-Match uses the weak comparison, so W/ prefixes are ignored */
+    static boolean matches(String ifNoneMatch, EntityTag tag) {
+        if ( ifNoneMatch == null ) {
+            return false;
+        }
+        String quoted = "\"" + tag.getValue() + "\"";
+        for (String candidate : ifNoneMatch.split(",")) {
+            String c = candidate.trim();
+            if ( c.startsWith("W/") ) {
+                c = c.substring(2);
+            }
+            if ( c.equals("*") || c.equals(quoted) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean unauthorizedId(String user, String player) {
+        return unauthorizedId(user, player, systemId);
+    }
+
+    static boolean unauthorizedId(Object user, String player, String systemId) {
         return ( user == null || !(player.equals(user) || systemId.equals(user)) );
     }
 }
@@ -26,4 +26,6 @@ import javax.ws.rs.core.Application;
 @ApplicationPath("/v1/")
 public class PlayerApplication extends Application {
     public static String FIRST_ROOM="firstroom";
+    /** path of the api under the http root path, for reactive routes served outside RESTEasy */
+    public static final String API_ROOT = "/v1";
 }
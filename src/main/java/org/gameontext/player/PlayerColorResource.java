@@ -21,12 +21,12 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 
+import javax.enterprise.context.ApplicationScoped;
 import javax.servlet.http.HttpServletResponse;
-import javax.ws.rs.GET;
-import javax.ws.rs.Path;
-import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 
+import io.quarkus.vertx.web.Route;
+import io.quarkus.vertx.web.Route.HttpMethod;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -38,8 +38,9 @@ import org.eclipse.microprofile.metrics.annotation.Counted;
 /**
  * The Player Color Service, where we get to come up with the players favorite color, as long as they like pink.
  *
+ * Served as a reactive route on the event loop, like PlayerNameResource.
  */
-@Path("/color")
+@ApplicationScoped
 @Api( tags = {"players"})
 public class PlayerColorResource {
     
@@ -50,8 +51,8 @@ public class PlayerColorResource {
         return ThreadLocalRandom.current().nextInt(0, max);
     }
     
-    @GET
-    @Produces(MediaType.APPLICATION_JSON)
+    @Route(path = PlayerApplication.API_ROOT + "/color", methods = HttpMethod.GET, produces = MediaType.APPLICATION_JSON)
+    @Route(path = PlayerApplication.API_ROOT + "/color/", methods = HttpMethod.GET, produces = MediaType.APPLICATION_JSON)
     @ApiOperation(value = "Get ten generated colors",
         notes = "",
         responseContainer = "List",
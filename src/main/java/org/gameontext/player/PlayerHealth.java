@@ -6,6 +6,8 @@ import javax.inject.Inject;
 import org.eclipse.microprofile.health.HealthCheck;
 import org.eclipse.microprofile.health.HealthCheckResponse;
 import org.eclipse.microprofile.health.Readiness;
+import org.gameontext.player.control.LocationWriteBehind;
+import org.gameontext.player.control.PlayerStore;
 
 
 @Readiness
@@ -13,16 +15,23 @@ import org.eclipse.microprofile.health.Readiness;
 public class PlayerHealth implements HealthCheck {
 
     @Inject
-    protected CouchDbHealth dbHealth;
+    protected PlayerStore store;
+
+    @Inject
+    protected LocationWriteBehind writeBehind;
 
     @Override
     public HealthCheckResponse call() {
-      if ( dbHealth.isHealthy() ) {
+      if ( !writeBehind.isReplayed() ) {
+          return HealthCheckResponse.named(PlayersResource.class.getSimpleName())
+                                    .withData("locationJournal", "replaying").down().build();
+      }
+      if ( store.isHealthy() ) {
           return HealthCheckResponse.named(PlayersResource.class.getSimpleName())
-                                    .withData(dbHealth.getDatabaseName(), "available").up().build();
+                                    .withData(store.getName(), "available").up().build();
       }
       return HealthCheckResponse.named(PlayersResource.class.getSimpleName())
-                                .withData(dbHealth.getDatabaseName(), "down").down()
+                                .withData(store.getName(), "down").down()
                                 .build();
     }
 }
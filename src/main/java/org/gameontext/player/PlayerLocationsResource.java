@@ -18,23 +18,36 @@ package org.gameontext.player;
 import java.time.temporal.ChronoUnit;
 import java.io.IOException;
 import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 
-import org.ektorp.CouchDbConnector;
-import org.ektorp.ViewQuery;
+import org.ektorp.DocumentNotFoundException;
+import org.gameontext.player.control.LastKnownGood;
+import org.gameontext.player.control.LocationCasEngine;
+import org.gameontext.player.control.LocationWriteBehind;
+import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerCache;
+import org.gameontext.player.control.PlayerStore;
+import org.gameontext.player.control.RoomOccupancyIndex;
 import org.gameontext.player.entity.ErrorResponse;
+import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationUpdateResult;
 import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
@@ -45,9 +58,12 @@ import io.swagger.annotations.ApiResponses;
 import org.eclipse.microprofile.metrics.annotation.Timed;
 import org.eclipse.microprofile.metrics.annotation.Metered;
 import org.eclipse.microprofile.metrics.annotation.Counted;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.faulttolerance.CircuitBreaker;
 import org.eclipse.microprofile.faulttolerance.Fallback;
 import org.eclipse.microprofile.faulttolerance.Retry;
 import org.eclipse.microprofile.faulttolerance.Timeout;
+import org.eclipse.microprofile.faulttolerance.exceptions.CircuitBreakerOpenException;
 /**
  * The Player location service, where we get to say where the players are.
  *
@@ -56,11 +72,38 @@ import org.eclipse.microprofile.faulttolerance.Timeout;
 @Api( tags = {"players"})
 public class PlayerLocationsResource {
 
+    /** attempts at writing a batch before reporting players that keep changing under us as conflicts */
+    private static final int MAX_BULK_ATTEMPTS = 3;
+
+    @Inject
+    protected PlayerStore store;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @Inject
+    protected LocationCasEngine locations;
+
+    @Inject
+    protected LocationWriteBehind writeBehind;
+
+    @Inject
+    protected PlayerCache cache;
+
+    @Inject
+    protected RoomOccupancyIndex index;
+
     @Inject
-    protected CouchDbConnector db;
+    protected LastKnownGood lastKnownGood;
 
     @Context
     HttpServletRequest httpRequest;
+
+    @ConfigProperty( name = "LOCATIONS_MAX_BATCH", defaultValue = "1000")
+    int maxBatch;
+
+    @ConfigProperty( name = "SYSTEM_ID", defaultValue = "x")
+    String systemId;
     
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -73,6 +116,7 @@ public class PlayerLocationsResource {
             @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL,
                     responseContainer = "Map"),
             @ApiResponse(code = HttpServletResponse.SC_NOT_FOUND, message = Messages.NOT_FOUND, response=ErrorResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_SERVICE_UNAVAILABLE, message = Messages.UNAVAILABLE, response=ErrorResponse.class),
     })
     @Timed(name = "getPlayerLocationInformation_timer",
         tags = "label=playerLocationsResource")
@@ -80,42 +124,154 @@ public class PlayerLocationsResource {
         tags = "label=playerLocationsResource")
     @Metered(name = "getPlayerLocationInformation_meter",
         tags = "label=playerLocationsResource")
-    @Fallback(fallbackMethod = "getPlayerLocationInformationFallback")
+    @Fallback(fallbackMethod = "getPlayerLocationInformationFallback",
+        skipOn = {PlayerAccountModificationException.class, DocumentNotFoundException.class})
+    @CircuitBreaker(requestVolumeThreshold = 20, failureRatio = 0.5, delay = 5000, successThreshold = 2,
+        skipOn = {PlayerAccountModificationException.class, DocumentNotFoundException.class})
     @Timeout(value = 2, unit = ChronoUnit.SECONDS)
-    @Retry(maxRetries = 2, maxDuration= 10000)
-    public Map<String,String> getPlayerLocationInformation(
+    @Retry(maxRetries = 2, maxDuration= 10000,
+        abortOn = {PlayerAccountModificationException.class, DocumentNotFoundException.class, CircuitBreakerOpenException.class})
+    public Response getPlayerLocationInformation(
             @ApiParam(value = "target player id", required = false) @QueryParam("playerId") String playerId,
             @ApiParam(value = "target site id", required = false) @QueryParam("siteId") String siteId) throws IOException {
         
         Map<String,String> locations = new HashMap<String,String>();
         
         if(playerId!=null){
-            PlayerDbRecord p = db.get(PlayerDbRecord.class, playerId);
+            PlayerDbRecord p = records.waitFor(() -> store.get(playerId));
             if(siteId==null || siteId.equals(p.getLocation()) ||
                 (siteId.equals(PlayerApplication.FIRST_ROOM) && p.getLocation()==null)
               ){
                 locations.put(p.getId(), p.getLocation()==null?PlayerApplication.FIRST_ROOM:p.getLocation());
             }
+        }else if(index.isReady()){
+            if(siteId==null){
+                locations.putAll(index.getLocations());
+            }else{
+                index.getPlayersIn(siteId).forEach( player -> locations.put(player, siteId));
+            }
+        }else if(siteId!=null){
+            store.listByLocation(siteId).forEach( player -> locations.put(player, siteId));
         }else{
-            ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true);
-            List<PlayerDbRecord> results = db.queryView(all, PlayerDbRecord.class);
-            results
-                .stream()
-                .filter( player -> siteId==null ||
-                                   siteId.equals(player.getLocation()) ||
-                                  (siteId.equals(PlayerApplication.FIRST_ROOM) && player.getLocation()==null)
-                       )
+            store.listAll()
                 .forEach( player -> locations.put(player.getId(), player.getLocation()==null?PlayerApplication.FIRST_ROOM:player.getLocation()));
         }
-        
-        return locations;
+
+        lastKnownGood.record(LastKnownGood.key("locations", playerId, siteId), locations);
+        return Response.ok().entity(locations).build();
     }
     
-    public Map<String,String> getPlayerLocationInformationFallback(
-            @ApiParam(value = "target player id", required = false) @QueryParam("playerId") String playerId,
-            @ApiParam(value = "target site id", required = false) @QueryParam("siteId") String siteId) throws IOException {
-        Map<String,String> locations = new HashMap<String,String>();
-        locations.put("null", "null");
-        return locations;
+    @PUT
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @ApiOperation(value = "Update the locations of many players.",
+        notes = "takes a map of player id to location change, each player is only moved if they are in the old location. "
+               +"Returns a map of player id to the outcome of that player's change.",
+        responseContainer = "Map",
+        response = LocationUpdateResult.class)
+    @ApiResponses(value = {
+            @ApiResponse(code = HttpServletResponse.SC_OK, message = Messages.SUCCESSFUL,
+                    responseContainer = "Map", response = LocationUpdateResult.class),
+            @ApiResponse(code = HttpServletResponse.SC_BAD_REQUEST, message = Messages.BAD_BATCH, response=ErrorResponse.class),
+            @ApiResponse(code = HttpServletResponse.SC_FORBIDDEN, message = Messages.FORBIDDEN + "update player locations", response=ErrorResponse.class)
+    })
+    @Timed(name = "updatePlayerLocations_timer",
+        tags = "label=playerLocationsResource")
+    @Counted(name = "updatePlayerLocations_count",
+        tags = "label=playerLocationsResource")
+    @Metered(name = "updatePlayerLocations_meter",
+        tags = "label=playerLocationsResource")
+    public Map<String,LocationUpdateResult> updatePlayerLocations(
+            @ApiParam(value = "map of player id to location change", required = true) Map<String,LocationChange> updates) throws IOException {
+
+        // as with a single location update, this is not for players to call:
+        // only server tokens, or the system id, may move other players.
+        Object audience = httpRequest.getAttribute("player.audience");
+        if ( !"server".equals(audience) && !systemId.equals(httpRequest.getAttribute("player.id")) ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.FORBIDDEN,
+                    "Unable to update player locations",
+                    "Invalid token type " + audience);
+        }
+        if ( updates == null || updates.size() > maxBatch || updates.containsValue(null) ) {
+            throw new PlayerAccountModificationException(
+                    Response.Status.BAD_REQUEST,
+                    Messages.BAD_BATCH,
+                    "Expected a map of up to " + maxBatch + " player ids to location changes");
+        }
+        for (String id : updates.keySet()) {
+            // the bulk write goes straight to the database, so only player documents may be named
+            // (couchdb reserves ids starting with _, for design and local documents)
+            if ( id == null || id.isEmpty() || id.startsWith("_") || PlayerLocationRecord.isLocationId(id) ) {
+                throw new PlayerAccountModificationException(
+                        Response.Status.BAD_REQUEST,
+                        Messages.BAD_BATCH,
+                        "Not a player id: " + id);
+            }
+        }
+
+        Map<String,LocationUpdateResult> results = new HashMap<String,LocationUpdateResult>();
+        if ( !store.isCouchDb() || writeBehind.isEnabled() ) {
+            // no bulk requests to save (or the moves are batched later), move each player in turn
+            updates.forEach((id, change) -> {
+                try {
+                    results.put(id, records.waitFor(() -> locations.move(id, change)));
+                } catch (DocumentNotFoundException e) {
+                    results.put(id, new LocationUpdateResult(LocationUpdateResult.NOT_FOUND, null));
+                }
+            });
+            return results;
+        }
+
+        Map<String,String> lastSeen = new HashMap<String,String>();
+        Set<String> pending = new HashSet<String>(updates.keySet());
+
+        for (int attempt = 0; attempt < MAX_BULK_ATTEMPTS && !pending.isEmpty(); attempt++) {
+            // one _all_docs?keys= read for every player still to be moved
+            Map<String,PlayerLocationRecord> moving = new HashMap<String,PlayerLocationRecord>();
+            for (PlayerLocationRecord l : records.loadLocations(pending).values()) {
+                String id = l.getPlayerId();
+                LocationChange change = updates.get(id);
+                lastSeen.put(id, l.getLocation()==null?PlayerApplication.FIRST_ROOM:l.getLocation());
+                if ( l.getLocation()==null || l.getLocation().equals(change.getOldLocation()) ) {
+                    l.setLocation(change.getNewLocation());
+                    moving.put(id, l);
+                } else {
+                    results.put(id, new LocationUpdateResult(LocationUpdateResult.CONFLICT, lastSeen.get(id)));
+                }
+            }
+            for (String id : pending) {
+                if ( !moving.containsKey(id) && !results.containsKey(id) ) {
+                    results.put(id, new LocationUpdateResult(LocationUpdateResult.NOT_FOUND, null));
+                }
+            }
+
+            // one _bulk_docs write, players that changed since we read them are read and checked again
+            pending = new HashSet<String>();
+            if ( !moving.isEmpty() ) {
+                pending.addAll(records.saveLocations(moving.values()));
+                for (PlayerLocationRecord l : moving.values()) {
+                    if ( !pending.contains(l.getPlayerId()) ) {
+                        results.put(l.getPlayerId(), new LocationUpdateResult(LocationUpdateResult.OK, l.getLocation()));
+                        cache.invalidate(l.getPlayerId());
+                        index.move(l);
+                    }
+                }
+            }
+        }
+
+        for (String id : pending) {
+            results.put(id, new LocationUpdateResult(LocationUpdateResult.CONFLICT, lastSeen.get(id)));
+        }
+
+        return results;
+    }
+
+    /**
+     * The database is slow or unreachable, serve the last good answer to the same
+     * query marked as stale, or 503 if we don't have one.
+     */
+    public Response getPlayerLocationInformationFallback(String playerId, String siteId) {
+        return lastKnownGood.stale(LastKnownGood.key("locations", playerId, siteId));
     }
 }
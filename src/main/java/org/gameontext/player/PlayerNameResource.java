@@ -21,14 +21,12 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
 
-import javax.servlet.http.HttpServletRequest;
+import javax.enterprise.context.ApplicationScoped;
 import javax.servlet.http.HttpServletResponse;
-import javax.ws.rs.GET;
-import javax.ws.rs.Path;
-import javax.ws.rs.Produces;
-import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 
+import io.quarkus.vertx.web.Route;
+import io.quarkus.vertx.web.Route.HttpMethod;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
@@ -40,13 +38,12 @@ import org.eclipse.microprofile.metrics.annotation.Counted;
 /**
  * The Player Name Service, where we get to come up with names for players..
  *
+ * Served as a reactive route on the event loop, as it never blocks, rather than
+ * through the servlet stack and a worker thread.
  */
-@Path("/name")
+@ApplicationScoped
 @Api( tags = {"players"})
 public class PlayerNameResource {
-    
-    @Context
-    HttpServletRequest httpRequest;
 
     //tables brought over from javascript..
     private final static String[] size = {"Tiny","Small","Large","Gigantic","Enormous"};
@@ -58,8 +55,8 @@ public class PlayerNameResource {
         return ThreadLocalRandom.current().nextInt(0, max);
     }
     
-    @GET
-    @Produces(MediaType.APPLICATION_JSON)
+    @Route(path = PlayerApplication.API_ROOT + "/name", methods = HttpMethod.GET, produces = MediaType.APPLICATION_JSON)
+    @Route(path = PlayerApplication.API_ROOT + "/name/", methods = HttpMethod.GET, produces = MediaType.APPLICATION_JSON)
     @ApiOperation(value = "Get ten randomly generated player names",
         notes = "",
         responseContainer = "List",
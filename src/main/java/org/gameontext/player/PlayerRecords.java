@@ -0,0 +1,444 @@
+package org.gameontext.player;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.gameontext.player.control.LocationWriteBehind;
+import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerStore;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+
+/**
+ * Reads and writes player records using whichever couchdb client is configured.
+ * With ektorp the work happens before these methods return, so the stages are
+ * already complete (and failures may be thrown directly). Unless COUCHDB_OFFLOAD is
+ * set: then single record ektorp calls run on a pool with a thread per pooled
+ * connection, and callers that chain on the stage don't wait for them (or for a
+ * free connection). The connection pool is then what limits concurrent requests to
+ * couchdb, and requests beyond it queue as tasks rather than as parked threads.
+ * At most COUCHDB_OFFLOAD_QUEUE calls wait, beyond that they fail at once (503),
+ * and a call still waiting after COUCHDB_REQUEST_TIMEOUT_MS fails and is dropped
+ * rather than sent late for a request that has already given up. Results are handed
+ * back on a small pool of their own, which nothing ever blocks on, so the connection
+ * threads only talk to couchdb and a busy worker pool can't hold results up.
+ * Callers that wait for the result anyway use waitFor, which makes their calls on
+ * the calling thread, as without the offload pool.
+ *
+ * Player locations are stored either within the player record (embedded, the default)
+ * or in a separate loc:&lt;playerId&gt; document (split). Records returned from here
+ * always carry the player's current location, whichever layout is in use.
+ * With the split layout, players that have not been migrated yet still have
+ * their location in the player record, and their location document is created
+ * the first time they move.
+ */
+@ApplicationScoped
+public class PlayerRecords {
+
+    public static final String EMBEDDED = "embedded";
+    public static final String SPLIT = "split";
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected ReactiveCouchDbClient reactiveDb;
+
+    @ConfigProperty( name = "PLAYER_LOCATION_STORAGE", defaultValue = EMBEDDED)
+    protected String locationStorage;
+
+    @ConfigProperty( name = "COUCHDB_OFFLOAD", defaultValue = "false")
+    protected boolean offload;
+
+    @ConfigProperty( name = "COUCHDB_MAX_CONNECTIONS", defaultValue = "20")
+    protected int maxConnections;
+
+    @ConfigProperty( name = "COUCHDB_OFFLOAD_QUEUE", defaultValue = "1000")
+    protected int offloadQueue;
+
+    @ConfigProperty( name = "COUCHDB_REQUEST_TIMEOUT_MS", defaultValue = "10000")
+    protected long requestTimeout;
+
+    @Inject
+    protected PlayerStore store;
+
+    @Inject
+    protected LocationWriteBehind writeBehind;
+
+    private ThreadPoolExecutor ektorp;
+    private ExecutorService handoff;
+
+    /** set while a waitFor caller runs, its ektorp calls are made on its own thread */
+    private static final ThreadLocal<Boolean> inline = ThreadLocal.withInitial(() -> false);
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if ( offload && !reactiveDb.isEnabled() ) {
+            AtomicInteger threads = new AtomicInteger();
+            ektorp = new ThreadPoolExecutor(maxConnections, maxConnections, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Math.max(1, offloadQueue)), r -> {
+                Thread t = new Thread(r, "playerdb-ektorp-" + threads.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+            // not the worker pool: request threads block on stages, and could hold up the results they wait for
+            AtomicInteger handoffThreads = new AtomicInteger();
+            handoff = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+                Thread t = new Thread(r, "playerdb-handoff-" + handoffThreads.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if ( ektorp != null ) {
+            ektorp.shutdownNow();
+            handoff.shutdownNow();
+        }
+    }
+
+    /**
+     * Run 'work' for a caller that will wait for its result anyway, and wait for it.
+     * Ektorp calls it makes on this thread are made here, rather than queued for the
+     * offload pool and handed back, so the caller holds one thread rather than three.
+     */
+    public <T> T waitFor(Supplier<CompletionStage<T>> work) {
+        if ( ektorp == null || inline.get() ) {
+            return PlayerStore.await(work.get());
+        }
+        inline.set(true);
+        try {
+            return PlayerStore.await(work.get());
+        } finally {
+            inline.set(false);
+        }
+    }
+
+    public boolean isSplitLocations() {
+        // location documents are a couchdb layout, other stores keep the location in the record
+        return SPLIT.equalsIgnoreCase(locationStorage) && store.isCouchDb();
+    }
+
+    /**
+     * @return true if a player's location is covered by the player record's revision,
+     *   false if it can change without the revision changing.
+     */
+    public boolean isLocationRevisioned() {
+        return !isSplitLocations() && !writeBehind.isEnabled();
+    }
+
+    public CompletionStage<PlayerDbRecord> load(String id) {
+        if ( !isSplitLocations() ) {
+            return loadPlayer(id).thenApply(writeBehind::overlay);
+        }
+        return loadPlayer(id).thenCompose(p -> findLocation(id).thenApply(l -> {
+            if ( l != null ) {
+                p.setLocation(l.getLocation());
+            }
+            return writeBehind.overlay(p);
+        }));
+    }
+
+    /**
+     * @return the player record's current revision, without reading the record.
+     *   Fails with DocumentNotFoundException if there is no such player.
+     */
+    public CompletionStage<String> revision(String id) {
+        if ( reactiveDb.isEnabled() ) {
+            return reactiveDb.revision(id).subscribeAsCompletionStage();
+        }
+        return blocking(() -> db.getCurrentRevision(id)); // HEAD, fails with DocumentNotFoundException
+    }
+
+    /**
+     * Write the record back, on success the record carries its new revision.
+     */
+    public CompletionStage<PlayerDbRecord> update(PlayerDbRecord p) {
+        if ( reactiveDb.isEnabled() ) {
+            return reactiveDb.update(p.getId(), p)
+                    .map(rev -> { p.setRev(rev); return p; })
+                    .subscribeAsCompletionStage();
+        }
+        return blocking(() -> {
+            db.update(p); // throws UpdateConflictException
+            return p;
+        });
+    }
+
+    /**
+     * @return the player's location, for a compare-and-set via saveLocation.
+     *   Fails with DocumentNotFoundException if there is no such player.
+     */
+    public CompletionStage<PlayerLocationRecord> loadLocation(String playerId) {
+        if ( !isSplitLocations() ) {
+            return loadPlayer(playerId).thenApply(PlayerLocationRecord::embeddedIn);
+        }
+        return findLocation(playerId).thenCompose(l -> {
+            if ( l != null ) {
+                return CompletableFuture.completedFuture(l);
+            }
+            // not moved since the split, the player record still has the location
+            return loadPlayer(playerId).thenApply(PlayerLocationRecord::splitFrom);
+        });
+    }
+
+    /**
+     * Write the location back, on success the location carries its new revision.
+     * Fails with UpdateConflictException if the record changed since it was read.
+     */
+    public CompletionStage<PlayerLocationRecord> saveLocation(PlayerLocationRecord l) {
+        if ( !l.isSeparate() ) {
+            PlayerDbRecord p = l.getPlayer();
+            p.setLocation(l.getLocation());
+            return update(p).thenApply(updated -> { l.setRev(updated.getRev()); return l; });
+        }
+        if ( reactiveDb.isEnabled() ) {
+            return (l.getRev() == null ? reactiveDb.create(l.getId(), l) : reactiveDb.update(l.getId(), l))
+                    .map(rev -> { l.setRev(rev); return l; })
+                    .subscribeAsCompletionStage();
+        }
+        return blocking(() -> {
+            if ( l.getRev() == null ) {
+                db.create(l); // throws UpdateConflictException if another move created it first
+            } else {
+                db.update(l);
+            }
+            return l;
+        });
+    }
+
+    /**
+     * Read many players in one request (two, with split locations).
+     * @return the players found, in no particular order
+     */
+    public List<PlayerDbRecord> loadAll(Collection<String> ids) {
+        List<PlayerDbRecord> players = fetch(ids, PlayerDbRecord.class);
+        players.removeIf(p -> PlayerLocationRecord.isLocationId(p.getId()));
+        return joinLocations(players);
+    }
+
+    /**
+     * Read the locations of many players in one request (two, for players not yet migrated).
+     * @return player id -> location, players that don't exist are left out.
+     */
+    public Map<String, PlayerLocationRecord> loadLocations(Collection<String> playerIds) {
+        Map<String, PlayerLocationRecord> result = new HashMap<>();
+        List<String> remaining = new ArrayList<>(playerIds);
+
+        if ( isSplitLocations() ) {
+            for (PlayerLocationRecord l : fetch(ids(playerIds), PlayerLocationRecord.class)) {
+                result.put(l.getPlayerId(), l);
+            }
+            remaining.removeAll(result.keySet());
+        }
+
+        if ( !remaining.isEmpty() ) {
+            for (PlayerDbRecord p : fetch(remaining, PlayerDbRecord.class)) {
+                result.put(p.getId(), isSplitLocations() ? PlayerLocationRecord.splitFrom(p) : PlayerLocationRecord.embeddedIn(p));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write many locations in one bulk request, the ones written carry their new revisions.
+     * @return the player ids whose locations were not written (usually conflicts)
+     */
+    public Set<String> saveLocations(Collection<PlayerLocationRecord> locations) {
+        List<Object> docs = new ArrayList<>();
+        for (PlayerLocationRecord l : locations) {
+            if ( l.isSeparate() ) {
+                docs.add(l);
+            } else {
+                l.getPlayer().setLocation(l.getLocation());
+                docs.add(l.getPlayer());
+            }
+        }
+
+        Set<String> failed = new HashSet<>();
+        for (DocumentOperationResult r : db.executeBulk(docs)) {
+            failed.add(PlayerLocationRecord.playerIdOf(r.getId()));
+        }
+        for (PlayerLocationRecord l : locations) {
+            if ( !l.isSeparate() ) {
+                l.setRev(l.getPlayer().getRev());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * With the split layout, overwrite the location in each record with the
+     * one from its location document. Moves not yet written behind win over both layouts.
+     */
+    public List<PlayerDbRecord> joinLocations(List<PlayerDbRecord> players) {
+        if ( !isSplitLocations() || players.isEmpty() ) {
+            players.forEach(writeBehind::overlay);
+            return players;
+        }
+        Map<String, PlayerDbRecord> byId = players.stream()
+                .collect(Collectors.toMap(PlayerDbRecord::getId, p -> p, (a, b) -> a));
+        for (PlayerLocationRecord l : fetch(ids(byId.keySet()), PlayerLocationRecord.class)) {
+            PlayerDbRecord p = byId.get(l.getPlayerId());
+            if ( p != null ) {
+                p.setLocation(l.getLocation());
+            }
+        }
+        players.forEach(writeBehind::overlay);
+        return players;
+    }
+
+    /**
+     * @return the players (of those given) that have a location document
+     */
+    public Set<String> withLocationRecords(Collection<String> playerIds) {
+        ViewQuery q = new ViewQuery().allDocs().keys(ids(playerIds));
+        q.setIgnoreNotFound(true);
+        Set<String> result = new HashSet<>();
+        for (ViewResult.Row row : db.queryView(q).getRows()) {
+            if ( !row.getValueAsNode().path("deleted").asBoolean(false) ) {
+                result.add(PlayerLocationRecord.playerIdOf(row.getId()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * With the split layout, delete the player's location document (if they have one).
+     */
+    public void deleteLocation(String playerId) {
+        if ( !isSplitLocations() ) {
+            return;
+        }
+        PlayerLocationRecord l = db.find(PlayerLocationRecord.class, PlayerLocationRecord.idFor(playerId));
+        if ( l != null ) {
+            db.delete(l);
+        }
+    }
+
+    private CompletionStage<PlayerDbRecord> loadPlayer(String id) {
+        if ( reactiveDb.isEnabled() ) {
+            return reactiveDb.get(PlayerDbRecord.class, id).subscribeAsCompletionStage();
+        }
+        return blocking(() -> db.get(PlayerDbRecord.class, id)); // fails with DocumentNotFoundException
+    }
+
+    /** @return the location document, or null if the player has none (yet) */
+    private CompletionStage<PlayerLocationRecord> findLocation(String playerId) {
+        String id = PlayerLocationRecord.idFor(playerId);
+        if ( reactiveDb.isEnabled() ) {
+            return reactiveDb.get(PlayerLocationRecord.class, id)
+                    .onFailure(DocumentNotFoundException.class).recoverWithNull()
+                    .subscribeAsCompletionStage();
+        }
+        return blocking(() -> db.find(PlayerLocationRecord.class, id));
+    }
+
+    /**
+     * Run an ektorp call, on the offload pool if there is one. The stage completes on
+     * the worker pool, so what the caller chains on doesn't hold a connection thread.
+     */
+    private <T> CompletionStage<T> blocking(Supplier<T> call) {
+        if ( ektorp == null || inline.get() ) {
+            return CompletableFuture.completedFuture(call.get());
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            ektorp.execute(() -> {
+                if ( result.isDone() ) {
+                    // timed out while queued, the caller has moved on
+                    dropped.incrementAndGet();
+                    return;
+                }
+                try {
+                    result.complete(call.get());
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            result.completeExceptionally(new PlayerAccountModificationException(
+                    Response.Status.SERVICE_UNAVAILABLE,
+                    Messages.UNAVAILABLE,
+                    "Too many requests are waiting for the player database"));
+            return result;
+        }
+        CompletableFuture<T> handed = result.whenCompleteAsync((value, failure) -> { }, handoff);
+        if ( requestTimeout > 0 ) {
+            // on the queued call, so it is dropped, and on the stage the caller has
+            result.orTimeout(requestTimeout, TimeUnit.MILLISECONDS);
+            handed.orTimeout(requestTimeout, TimeUnit.MILLISECONDS);
+        }
+        return handed;
+    }
+
+    @Gauge(name = "couchOffload_queued", unit = MetricUnits.NONE,
+        tags = "label=playerRecords")
+    public long getOffloadQueued() {
+        return ektorp == null ? 0 : ektorp.getQueue().size();
+    }
+
+    @Gauge(name = "couchOffload_rejected", unit = MetricUnits.NONE,
+        tags = "label=playerRecords")
+    public long getOffloadRejected() {
+        return rejected.get();
+    }
+
+    @Gauge(name = "couchOffload_dropped", unit = MetricUnits.NONE,
+        tags = "label=playerRecords")
+    public long getOffloadDropped() {
+        return dropped.get();
+    }
+
+    private <T> List<T> fetch(Collection<String> ids, Class<T> type) {
+        if ( ids.isEmpty() ) {
+            return new ArrayList<>();
+        }
+        ViewQuery q = new ViewQuery().allDocs().includeDocs(true).keys(ids);
+        q.setIgnoreNotFound(true);
+        List<T> docs = db.queryView(q, type);
+        docs.removeIf(d -> d == null);
+        return docs;
+    }
+
+    private static List<String> ids(Collection<String> playerIds) {
+        return playerIds.stream().map(PlayerLocationRecord::idFor).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,83 @@
+package org.gameontext.player;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Disposes;
+import javax.enterprise.inject.Instance;
+import javax.enterprise.inject.Produces;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DbAccessException;
+import org.gameontext.player.control.CouchPlayerStore;
+import org.gameontext.player.control.FilePlayerStore;
+import org.gameontext.player.control.MemoryPlayerStore;
+import org.gameontext.player.control.PlayerStore;
+import org.gameontext.player.control.ShardedPlayerStore;
+
+public class PlayerStoreInjector {
+
+    public static final String COUCHDB = "couchdb";
+    public static final String MEMORY = "memory";
+    public static final String FILE = "file";
+    public static final String SHARDED = "sharded";
+
+    @ConfigProperty( name = "PLAYER_STORE", defaultValue = COUCHDB)
+    protected String storeType;
+
+    @ConfigProperty( name = "PLAYER_STORE_FILE", defaultValue = "playerdb.journal")
+    protected String storeFile;
+
+    @ConfigProperty( name = "PLAYER_STORE_FSYNC", defaultValue = "true")
+    protected boolean storeFsync;
+
+    @ConfigProperty( name = "PLAYER_STORE_COMPACT_BYTES", defaultValue = "67108864")
+    protected long storeCompactBytes;
+
+    @ConfigProperty( name = "PLAYER_SHARDS", defaultValue = "4")
+    protected int shards;
+
+    @ConfigProperty( name = "PLAYER_SHARDS_PREVIOUS", defaultValue = "0")
+    protected int previousShards;
+
+    @ConfigProperty( name = "PLAYER_SHARDS_MIGRATE", defaultValue = "false")
+    protected boolean migrateShards;
+
+    @Produces @ApplicationScoped
+    public PlayerStore expose(Instance<CouchPlayerStore> couch, Instance<CouchDbInstance> couchInstance) {
+        if ( MEMORY.equalsIgnoreCase(storeType) ) {
+            return new MemoryPlayerStore();
+        }
+        if ( FILE.equalsIgnoreCase(storeType) ) {
+            FilePlayerStore store = new FilePlayerStore(Paths.get(storeFile), storeFsync, storeCompactBytes);
+            try {
+                store.open();
+            } catch (IOException e) {
+                // as for couchdb, keep the app down rather than run without its records
+                throw new javax.enterprise.inject.CreationException("Unable to open " + storeFile, e);
+            }
+            return store;
+        }
+        if ( SHARDED.equalsIgnoreCase(storeType) ) {
+            ShardedPlayerStore store = new ShardedPlayerStore(couchInstance.get(), shards, previousShards, migrateShards);
+            try {
+                store.open();
+            } catch (DbAccessException e) {
+                throw new javax.enterprise.inject.CreationException("Unable to open player shards", e);
+            }
+            return store;
+        }
+        return couch.get();
+    }
+
+    public void close(@Disposes PlayerStore store) throws IOException {
+        if ( store instanceof FilePlayerStore ) {
+            ((FilePlayerStore) store).close();
+        }
+        if ( store instanceof ShardedPlayerStore ) {
+            ((ShardedPlayerStore) store).close();
+        }
+    }
+}
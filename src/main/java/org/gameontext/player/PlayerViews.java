@@ -0,0 +1,162 @@
+package org.gameontext.player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.ektorp.support.DesignDocument;
+import org.gameontext.player.control.PlayerStore;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.Log;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Views owned by this service, kept in their own design document so they can be
+ * installed and upgraded at startup without touching _design/players.
+ *
+ * The design document carries a version, bump VERSION whenever a view changes
+ * and the next instance to start will replace an older installed one. Instances
+ * still running an older version leave a newer document alone.
+ * Until the document is installed and its views built (or if couchdb is unreachable
+ * at startup) isInstalled() returns false, and callers should use the players view.
+ */
+@ApplicationScoped
+public class PlayerViews {
+
+    public static final String DESIGN_DOC = "_design/playerservice";
+    public static final String BY_LOCATION = "by_location";
+
+    static final int VERSION = 1;
+
+    private static final long RETRY_DELAY_MS = 5000;
+
+    /** reads of the design document, when other instances keep installing it under us */
+    private static final int INSTALL_ATTEMPTS = 3;
+
+    /**
+     * Players by room, players without a location are in the first room.
+     * Location documents (split layout) and player records both emit, the
+     * value says which, as a location document replaces its player's location.
+     */
+    private static final String BY_LOCATION_MAP =
+            "function(doc) {"
+          + " emit(doc.location || '" + PlayerApplication.FIRST_ROOM + "',"
+          + " doc._id.indexOf('" + PlayerLocationRecord.ID_PREFIX + "') === 0 ? 1 : 0);"
+          + "}";
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @Inject
+    protected PlayerStore store;
+
+    @ConfigProperty( name = "COUCHDB_VIEWS", defaultValue = "true")
+    protected boolean enabled;
+
+    private volatile boolean installed = false;
+
+    void start(@Observes StartupEvent event) {
+        if ( !enabled || !store.isCouchDb() ) {
+            return;
+        }
+        Thread installer = new Thread(this::install, "playerdb-views");
+        installer.setDaemon(true);
+        installer.start();
+    }
+
+    public boolean isInstalled() {
+        return installed;
+    }
+
+    /**
+     * @return the ids of the players in the room, read from the by_location view
+     */
+    public List<String> getPlayersIn(String siteId) {
+        ViewQuery q = new ViewQuery().designDocId(DESIGN_DOC).viewName(BY_LOCATION).key(siteId);
+        List<String> players = new ArrayList<>();
+        List<String> unmoved = new ArrayList<>();
+        for (ViewResult.Row row : db.queryView(q).getRows()) {
+            if ( row.getValueAsInt() == 1 ) {
+                players.add(PlayerLocationRecord.playerIdOf(row.getId()));
+            } else {
+                unmoved.add(row.getId());
+            }
+        }
+        if ( records.isSplitLocations() && !unmoved.isEmpty() ) {
+            // the player record only counts for players without a location document
+            Set<String> moved = records.withLocationRecords(unmoved);
+            unmoved.removeAll(moved);
+        }
+        players.addAll(unmoved);
+        return players;
+    }
+
+    /**
+     * Install (or upgrade) the design document in the database, and build its views.
+     * Also used for each shard of a sharded store. Instances starting together race
+     * to install it, losing the race means another instance has just written it, so
+     * the document is read again rather than the conflict failing the install.
+     */
+    public static void installIn(CouchDbConnector db) {
+        for (int attempt = 1; ; attempt++) {
+            DesignDocument current = db.find(DesignDocument.class, DESIGN_DOC);
+            Object version = current == null ? null : current.getAnonymous().get("version");
+            if ( current != null && version instanceof Number && ((Number) version).intValue() >= VERSION ) {
+                break;
+            }
+            DesignDocument wanted = new DesignDocument(DESIGN_DOC);
+            wanted.setAnonymous("version", VERSION);
+            wanted.addView(BY_LOCATION, new DesignDocument.View(BY_LOCATION_MAP));
+            try {
+                if ( current == null ) {
+                    db.create(wanted);
+                } else {
+                    wanted.setRevision(current.getRevision());
+                    db.update(wanted);
+                }
+            } catch (UpdateConflictException e) {
+                if ( attempt >= INSTALL_ATTEMPTS ) {
+                    throw e;
+                }
+                Log.log(Level.FINE, PlayerViews.class, "{0} in {1} was written by another instance, reading it again", DESIGN_DOC, db.getDatabaseName());
+                continue;
+            }
+            Log.log(Level.INFO, PlayerViews.class, "Installed {0} version {1} in {2}", DESIGN_DOC, VERSION, db.getDatabaseName());
+            break;
+        }
+
+        // build the view index now, rather than on the first request to use it
+        db.queryView(new ViewQuery().designDocId(DESIGN_DOC).viewName(BY_LOCATION).limit(1));
+    }
+
+    private void install() {
+        while ( !installed ) {
+            try {
+                installIn(db);
+                installed = true;
+            } catch (Exception e) {
+                Log.log(Level.WARNING, this, "Unable to install " + DESIGN_DOC + ", retrying", e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package org.gameontext.player;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.DbAccessException;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.ViewQuery;
+import org.gameontext.player.CouchNodePool.Node;
+import org.gameontext.player.entity.PlayerCodecs;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.LatencyWindow;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.subscription.Cancellable;
+import io.smallrye.mutiny.subscription.UniEmitter;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.mutiny.core.Vertx;
+import io.vertx.mutiny.core.buffer.Buffer;
+import io.vertx.mutiny.ext.web.client.HttpRequest;
+import io.vertx.mutiny.ext.web.client.HttpResponse;
+import io.vertx.mutiny.ext.web.client.WebClient;
+
+/**
+ * Non-blocking CouchDB client built on the Vert.x web client.
+ *
+ * Covers the same document and view operations the resources use via ektorp,
+ * but never holds a thread while waiting on CouchDB. Failures are reported
+ * using the ektorp exception types, so the ErrorResponseMapper treats both
+ * clients the same way.
+ *
+ * Selected with COUCHDB_CLIENT=vertx, ektorp remains the default.
+ *
+ * COUCHDB_SERVICE_URL may list several nodes of a cluster, comma separated, or reads
+ * and writes can be given their own nodes with COUCHDB_READ_URLS and COUCHDB_WRITE_URLS.
+ * Reads go to the healthy read node with the fewest requests outstanding. Writes for
+ * a player (their record and their location document) always go to the same write node
+ * while it is healthy, so a player's writes aren't racing each other between nodes.
+ * Nodes are probed in the background, and taken out of use while they fail (see CouchNodePool).
+ *
+ * Document reads are hedged: if the first node hasn't answered within the
+ * COUCHDB_HEDGE_PERCENTILE latency of recent reads, the same read is sent to another
+ * read node, and whichever answers first is used. A read that fails outright is also
+ * sent on to another node straight away.
+ *
+ * Every request, probes included, gives up after COUCHDB_REQUEST_TIMEOUT_MS, so a node
+ * that stops answering fails its requests (and is ejected) rather than holding them.
+ */
+@ApplicationScoped
+public class ReactiveCouchDbClient {
+
+    public static final String EKTORP = "ektorp";
+    public static final String VERTX = "vertx";
+
+    @ConfigProperty( name = "COUCHDB_USER", defaultValue = "x")
+    protected String username;
+
+    @ConfigProperty( name = "COUCHDB_PASSWORD", defaultValue = "x")
+    protected String password;
+
+    @ConfigProperty( name = "COUCHDB_SERVICE_URL", defaultValue = "x")
+    protected String url;
+
+    @ConfigProperty( name = "COUCHDB_READ_URLS")
+    protected Optional<String> readUrls;
+
+    @ConfigProperty( name = "COUCHDB_WRITE_URLS")
+    protected Optional<String> writeUrls;
+
+    @ConfigProperty( name = "COUCHDB_PROBE_INTERVAL_MS", defaultValue = "5000")
+    protected long probeInterval;
+
+    @ConfigProperty( name = "COUCHDB_CLIENT", defaultValue = EKTORP)
+    protected String clientType;
+
+    @ConfigProperty( name = "COUCHDB_MAX_CONNECTIONS", defaultValue = "20")
+    protected int maxConnections;
+
+    @ConfigProperty( name = "COUCHDB_HEDGE_PERCENTILE", defaultValue = "95")
+    protected double hedgePercentile;
+
+    @ConfigProperty( name = "COUCHDB_HEDGE_MIN_DELAY_MS", defaultValue = "5")
+    protected long hedgeMinDelay;
+
+    @ConfigProperty( name = "COUCHDB_REQUEST_TIMEOUT_MS", defaultValue = "10000")
+    protected long requestTimeout;
+
+    @Inject
+    protected Vertx vertx;
+
+    /** reads sampled for the hedge delay */
+    private static final int LATENCY_SAMPLES = 1024;
+
+    /** hedge delay used until enough reads have been sampled */
+    private static final long UNSAMPLED_DELAY_MS = 100;
+
+    private final ObjectMapper mapper = new ObjectMapper()
+            .registerModule(new PlayerCodecs())
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final String dbPath = "/" + CouchInjector.DB_NAME + "/";
+
+    /** every node, whether it takes reads, writes or both */
+    private final Map<String, Node> nodes = new HashMap<>();
+    private CouchNodePool readNodes;
+    private CouchNodePool writeNodes;
+
+    private LatencyWindow latencies;
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if ( !isEnabled() ) {
+            return;
+        }
+
+        try {
+            readNodes = pool(readUrls.orElse(url));
+            writeNodes = pool(writeUrls.orElse(url));
+            latencies = new LatencyWindow(LATENCY_SAMPLES, hedgePercentile, UNSAMPLED_DELAY_MS);
+            Log.log(Level.FINER, this, "Non-blocking client connected to {0}, reading from {1} nodes and writing to {2}",
+                    CouchInjector.DB_NAME, readNodes.size(), writeNodes.size());
+        } catch (MalformedURLException e) {
+            throw new javax.enterprise.inject.CreationException("Unable to connect to database " + CouchInjector.DB_NAME, e);
+        }
+
+        if ( probeInterval > 0 ) {
+            vertx.setPeriodic(probeInterval, id -> probe());
+        }
+    }
+
+    /** a node listed for both reads and writes is one node, with one connection pool */
+    private CouchNodePool pool(String urls) throws MalformedURLException {
+        List<Node> members = new ArrayList<>();
+        for (String nodeUrl : CouchInjector.nodeUrls(urls)) {
+            Node node = nodes.get(nodeUrl);
+            if ( node == null ) {
+                URL target = new URL(nodeUrl);
+                WebClientOptions options = new WebClientOptions()
+                        .setDefaultHost(target.getHost())
+                        .setDefaultPort(target.getPort() == -1 ? target.getDefaultPort() : target.getPort())
+                        .setSsl("https".equalsIgnoreCase(target.getProtocol()))
+                        .setMaxPoolSize(maxConnections)
+                        .setKeepAlive(true);
+                node = new Node(nodeUrl, WebClient.create(vertx, options));
+                nodes.put(nodeUrl, node);
+            }
+            members.add(node);
+        }
+        return new CouchNodePool(members);
+    }
+
+    /** ask each node for its welcome message, ejecting the ones that don't answer and reinstating the ones that do */
+    private void probe() {
+        for (Node node : nodes.values()) {
+            HttpRequest<Buffer> probe = request(node, HttpMethod.GET, "/");
+            if ( requestTimeout > 0 ) {
+                // answer before the next probe is due
+                probe.timeout(Math.min(requestTimeout, probeInterval));
+            }
+            probe.send().subscribe().with(response -> {
+                boolean up = response.statusCode() < 500;
+                if ( up != node.healthy ) {
+                    Log.log(Level.WARNING, this, "CouchDB node {0} is {1}", node.url, up ? "back in use" : "failing, no longer in use");
+                }
+                if ( up ) {
+                    node.failures.set(0);
+                }
+                node.healthy = up;
+            }, failure -> {
+                if ( node.healthy ) {
+                    Log.log(Level.WARNING, this, "CouchDB node {0} is failing, no longer in use", node.url);
+                }
+                node.healthy = false;
+            });
+        }
+    }
+
+    /**
+     * @return true if resources should use this client rather than ektorp
+     */
+    public boolean isEnabled() {
+        return VERTX.equalsIgnoreCase(clientType);
+    }
+
+    public <T> Uni<T> get(Class<T> type, String id) {
+        String path = documentPath(id);
+        return hedged(node -> request(node, HttpMethod.GET, path).send(), response -> {
+            checkStatus(path, response);
+            return read(response, type);
+        });
+    }
+
+    /**
+     * @return the current revision of the document, read with a HEAD request
+     */
+    public Uni<String> revision(String id) {
+        String path = documentPath(id);
+        return hedged(node -> request(node, HttpMethod.HEAD, path).send(), response -> {
+            checkStatus(path, response);
+            String etag = response.getHeader("ETag");
+            return etag == null ? null : etag.replace("\"", "");
+        });
+    }
+
+    /**
+     * Create a new document, fails with UpdateConflictException if the id is already in use.
+     * @return the revision of the new document
+     */
+    public Uni<String> create(String id, Object document) {
+        return put(id, document);
+    }
+
+    /**
+     * Update an existing document, the document must carry the _rev being replaced.
+     * @return the new revision of the document
+     */
+    public Uni<String> update(String id, Object document) {
+        return put(id, document);
+    }
+
+    /**
+     * @return the revision recording the deletion
+     */
+    public Uni<String> delete(String id, String rev) {
+        String path = documentPath(id);
+        Node node = writeNode(id);
+        return send(node, request(node, HttpMethod.DELETE, path)
+                .addQueryParam("rev", rev)
+                .send())
+                .map(response -> {
+                    if ( response.statusCode() == 409 ) {
+                        throw new UpdateConflictException(id, rev);
+                    }
+                    checkStatus(path, response);
+                    return readTree(response).path("rev").asText(null);
+                });
+    }
+
+    /**
+     * Run a view query, returning either the included documents or the row values
+     * depending on whether the query asked for includeDocs.
+     */
+    public <T> Uni<List<T>> queryView(ViewQuery query, Class<T> type) {
+        ViewQuery q = query.clone();
+        q.dbPath(dbPath);
+        String path = q.buildQuery();
+
+        Node node = readNodes.leastOutstanding(null);
+        Uni<HttpResponse<Buffer>> result;
+        if ( q.hasMultipleKeys() ) {
+            result = send(node, request(node, HttpMethod.POST, path)
+                    .putHeader("Content-Type", "application/json")
+                    .sendBuffer(Buffer.buffer(q.getKeysAsJson())));
+        } else {
+            result = send(node, request(node, HttpMethod.GET, path).send());
+        }
+
+        return result.map(response -> {
+            checkStatus(path, response);
+            List<T> values = new ArrayList<>();
+            for (JsonNode row : readTree(response).path("rows")) {
+                JsonNode value = q.isIncludeDocs() ? row.get("doc") : row.get("value");
+                if ( value == null || value.isNull() ) {
+                    // missing keys come back as error rows, skip them like ektorp does
+                    continue;
+                }
+                values.add(convert(value, type));
+            }
+            return values;
+        });
+    }
+
+    private Uni<String> put(String id, Object document) {
+        String path = documentPath(id);
+        ObjectNode body = mapper.valueToTree(document);
+        Node node = writeNode(id);
+        return send(node, request(node, HttpMethod.PUT, path)
+                .putHeader("Content-Type", "application/json")
+                .sendBuffer(Buffer.buffer(body.toString())))
+                .map(response -> {
+                    if ( response.statusCode() == 409 ) {
+                        throw new UpdateConflictException(id, body.path("_rev").asText(null));
+                    }
+                    checkStatus(path, response);
+                    return readTree(response).path("rev").asText(null);
+                });
+    }
+
+    private HttpRequest<Buffer> request(Node node, HttpMethod method, String path) {
+        HttpRequest<Buffer> request = node.client.request(method, path)
+                .basicAuthentication(username, password)
+                .putHeader("Accept", "application/json");
+        if ( requestTimeout > 0 ) {
+            request.timeout(requestTimeout);
+        }
+        return request;
+    }
+
+    /**
+     * Track the request against the node, which is ejected if its requests keep failing.
+     * Timeouts are failures, and so is a request cancelled before it was answered.
+     */
+    private Uni<HttpResponse<Buffer>> send(Node node, Uni<HttpResponse<Buffer>> request) {
+        return node.track(request, probeInterval > 0, true);
+    }
+
+    /** writes for a player, and their location document, share a node */
+    private Node writeNode(String id) {
+        return writeNodes.pinned(PlayerLocationRecord.playerIdOf(id));
+    }
+
+    /**
+     * Send the read to the least busy node, and to the next least busy as well if the first is slow or fails.
+     */
+    private <T> Uni<T> hedged(Function<Node, Uni<HttpResponse<Buffer>>> request, Function<HttpResponse<Buffer>, T> handle) {
+        reads.incrementAndGet();
+        Node first = readNodes.leastOutstanding(null);
+        Node backup = hedgePercentile > 0 ? readNodes.leastOutstanding(first) : null;
+        if ( backup == null ) {
+            return send(first, request.apply(first)).map(handle);
+        }
+        // the loser of a hedge is cancelled, that isn't its node failing
+        Function<Node, Uni<T>> read = node -> node.track(request.apply(node), probeInterval > 0, false).map(handle);
+        long delay = Math.max(hedgeMinDelay, latencies.getPercentileMillis());
+        return Uni.createFrom().emitter(emitter -> new HedgedRead<T>(emitter, read, backup).start(first, delay));
+    }
+
+    /**
+     * One hedged read: the first answer wins, a 404 is an answer, anything else
+     * fails the read only once both nodes have failed. Once the read is over, however
+     * it ended (including the caller cancelling it), any request still out is cancelled,
+     * so the losing node's connection goes back to the pool.
+     */
+    private class HedgedRead<T> {
+        final UniEmitter<? super T> emitter;
+        final Function<Node, Uni<T>> read;
+        final Node backup;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean hedged = new AtomicBoolean();
+        final AtomicInteger outstanding = new AtomicInteger();
+        final List<Cancellable> calls = new CopyOnWriteArrayList<>();
+
+        HedgedRead(UniEmitter<? super T> emitter, Function<Node, Uni<T>> read, Node backup) {
+            this.emitter = emitter;
+            this.read = read;
+            this.backup = backup;
+        }
+
+        void start(Node primary, long delay) {
+            long timer = vertx.setTimer(delay, id -> hedge());
+            emitter.onTermination(() -> {
+                done.set(true);
+                vertx.cancelTimer(timer);
+                // the winner has already completed, so this only reaches the loser
+                calls.forEach(Cancellable::cancel);
+            });
+            send(primary, true);
+        }
+
+        void hedge() {
+            if ( !done.get() && hedged.compareAndSet(false, true) ) {
+                hedges.incrementAndGet();
+                send(backup, false);
+            }
+        }
+
+        void send(Node node, boolean primary) {
+            outstanding.incrementAndGet();
+            long start = System.nanoTime();
+            Cancellable call = read.apply(node).subscribe().with(item -> {
+                outstanding.decrementAndGet();
+                if ( primary ) {
+                    latencies.record(System.nanoTime() - start);
+                }
+                if ( done.compareAndSet(false, true) ) {
+                    if ( !primary ) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    emitter.complete(item);
+                }
+            }, failure -> {
+                outstanding.decrementAndGet();
+                if ( failure instanceof DocumentNotFoundException ) {
+                    // the node answered, the document isn't there
+                    if ( primary ) {
+                        latencies.record(System.nanoTime() - start);
+                    }
+                    if ( done.compareAndSet(false, true) ) {
+                        emitter.fail(failure);
+                    }
+                    return;
+                }
+                hedge();
+                if ( outstanding.get() == 0 && done.compareAndSet(false, true) ) {
+                    emitter.fail(failure);
+                }
+            });
+            calls.add(call);
+            if ( done.get() ) {
+                // the read ended while this was being sent
+                call.cancel();
+            }
+        }
+    }
+
+    private void checkStatus(String path, HttpResponse<Buffer> response) {
+        int code = response.statusCode();
+        if ( code == 404 ) {
+            throw new DocumentNotFoundException(path, readTree(response));
+        }
+        if ( code < 200 || code >= 300 ) {
+            throw new DbAccessException("Unexpected response " + code + " from " + path + ": " + response.bodyAsString());
+        }
+    }
+
+    private JsonNode readTree(HttpResponse<Buffer> response) {
+        Buffer body = response.body();
+        if ( body == null ) {
+            return mapper.createObjectNode();
+        }
+        try {
+            return mapper.readTree(body.getBytes());
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+    }
+
+    private <T> T read(HttpResponse<Buffer> response, Class<T> type) {
+        try {
+            return mapper.readValue(response.body().getBytes(), type);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+    }
+
+    private <T> T convert(JsonNode node, Class<T> type) {
+        try {
+            return mapper.treeToValue(node, type);
+        } catch (IOException e) {
+            throw new DbAccessException(e);
+        }
+    }
+
+    @Gauge(name = "couchdbNodes_healthyReaders", unit = MetricUnits.NONE,
+        tags = "label=reactiveCouchDbClient")
+    public long getHealthyReadNodes() {
+        return readNodes == null ? 0 : readNodes.getHealthyCount();
+    }
+
+    @Gauge(name = "couchdbNodes_healthyWriters", unit = MetricUnits.NONE,
+        tags = "label=reactiveCouchDbClient")
+    public long getHealthyWriteNodes() {
+        return writeNodes == null ? 0 : writeNodes.getHealthyCount();
+    }
+
+    @Gauge(name = "couchdbHedge_reads", unit = MetricUnits.NONE,
+        tags = "label=reactiveCouchDbClient")
+    public long getReads() {
+        return reads.get();
+    }
+
+    @Gauge(name = "couchdbHedge_hedged", unit = MetricUnits.NONE,
+        tags = "label=reactiveCouchDbClient")
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    @Gauge(name = "couchdbHedge_wins", unit = MetricUnits.NONE,
+        tags = "label=reactiveCouchDbClient")
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    @Gauge(name = "couchdbHedge_hedgeRate", unit = MetricUnits.PERCENT,
+        tags = "label=reactiveCouchDbClient")
+    public double getHedgeRate() {
+        long total = reads.get();
+        return total == 0 ? 0 : 100.0 * hedges.get() / total;
+    }
+
+    @Gauge(name = "couchdbHedge_winRate", unit = MetricUnits.PERCENT,
+        tags = "label=reactiveCouchDbClient")
+    public double getHedgeWinRate() {
+        long sent = hedges.get();
+        return sent == 0 ? 0 : 100.0 * hedgeWins.get() / sent;
+    }
+
+    @Gauge(name = "couchdbHedge_delay", unit = MetricUnits.MILLISECONDS,
+        tags = "label=reactiveCouchDbClient")
+    public long getHedgeDelay() {
+        return latencies == null ? 0 : Math.max(hedgeMinDelay, latencies.getPercentileMillis());
+    }
+
+    private String documentPath(String id) {
+        // URLEncoder is form encoding, CouchDB wants %20 rather than + for spaces
+        return dbPath + URLEncoder.encode(id, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+}
@@ -0,0 +1,121 @@
+package org.gameontext.player.control;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Typed;
+import javax.inject.Inject;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.ViewQuery;
+import org.gameontext.player.CouchDbHealth;
+import org.gameontext.player.PlayerApplication;
+import org.gameontext.player.PlayerRecords;
+import org.gameontext.player.PlayerViews;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+
+/**
+ * Player records kept in couchdb, the default store.
+ *
+ * Reads and writes go through PlayerRecords, so they use whichever couchdb client
+ * and location layout are configured. Room lookups use the by_location view
+ * once it is installed, and a scan of the players view until then.
+ */
+@ApplicationScoped
+@Typed(CouchPlayerStore.class)
+public class CouchPlayerStore implements PlayerStore {
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @Inject
+    protected PlayerViews views;
+
+    @Inject
+    protected CouchDbHealth dbHealth;
+
+    @Inject
+    protected LocationWriteBehind writeBehind;
+
+    @Override
+    public CompletionStage<PlayerDbRecord> get(String id) {
+        return records.load(id);
+    }
+
+    @Override
+    public List<PlayerDbRecord> getAll(Collection<String> ids) {
+        return records.loadAll(ids);
+    }
+
+    @Override
+    public void create(PlayerDbRecord player) {
+        db.create(player);
+    }
+
+    @Override
+    public CompletionStage<PlayerDbRecord> update(PlayerDbRecord player) {
+        return records.update(player);
+    }
+
+    @Override
+    public void delete(String id) {
+        PlayerDbRecord p = db.get(PlayerDbRecord.class, id); // throws DocumentNotFoundException
+        db.delete(p);
+        records.deleteLocation(id);
+    }
+
+    @Override
+    public List<PlayerDbRecord> listAll() {
+        ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true);
+        List<PlayerDbRecord> results = db.queryView(all, PlayerDbRecord.class);
+        results.removeIf(player -> PlayerLocationRecord.isLocationId(player.getId()));
+        return records.joinLocations(results);
+    }
+
+    @Override
+    public List<String> listByLocation(String siteId) {
+        if ( views.isInstalled() ) {
+            List<String> result = views.getPlayersIn(siteId);
+            // the view hasn't seen moves still being written behind
+            Map<String, String> pending = writeBehind.getPendingLocations();
+            result.removeIf(pending::containsKey);
+            pending.forEach((id, location) -> {
+                if ( siteId.equals(location == null ? PlayerApplication.FIRST_ROOM : location) ) {
+                    result.add(id);
+                }
+            });
+            return result;
+        }
+        List<String> result = new ArrayList<>();
+        for (PlayerDbRecord player : listAll()) {
+            String location = player.getLocation() == null ? PlayerApplication.FIRST_ROOM : player.getLocation();
+            if ( location.equals(siteId) ) {
+                result.add(player.getId());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return dbHealth.isHealthy();
+    }
+
+    @Override
+    public String getName() {
+        return dbHealth.getDatabaseName();
+    }
+
+    @Override
+    public boolean isCouchDb() {
+        return true;
+    }
+}
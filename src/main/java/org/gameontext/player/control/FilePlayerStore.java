@@ -0,0 +1,226 @@
+package org.gameontext.player.control;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.logging.Level;
+
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.gameontext.player.entity.PlayerCodecs;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Player records held in memory and journaled to a local file, for single node
+ * deployments with no database.
+ *
+ * Each write is appended to the journal as a line of json, a record to store or
+ * an id to remove. At startup the journal is replayed, then compacted to one line
+ * per player, and it is compacted again whenever it grows past PLAYER_STORE_COMPACT_BYTES
+ * and twice its size after the last compaction. Reads are served from memory, as in
+ * MemoryPlayerStore, and don't wait on writes. Writes are serialized so the journal
+ * order matches the order they were applied in, and are appended (and with fsync on,
+ * synced) before they are applied, so a write that fails to reach the journal is never
+ * seen by readers.
+ */
+public class FilePlayerStore extends MemoryPlayerStore {
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new PlayerCodecs());
+    private final Path journal;
+    private final boolean fsync;
+    private final long compactBytes;
+    private FileChannel channel;
+    private long journalBytes;
+    private long compactedBytes;
+
+    /**
+     * @param compactBytes compact the journal once it is larger than this (and twice its
+     *   compacted size), 0 to compact only at startup
+     */
+    public FilePlayerStore(Path journal, boolean fsync, long compactBytes) {
+        this.journal = journal;
+        this.fsync = fsync;
+        this.compactBytes = compactBytes;
+    }
+
+    public synchronized void open() throws IOException {
+        if ( Files.exists(journal) ) {
+            replay();
+        }
+        compact();
+        Log.log(Level.INFO, this, "Opened {0} with {1} players", journal, players.size());
+    }
+
+    /**
+     * Write the current records to a new journal, then swap it in.
+     */
+    private void compact() throws IOException {
+        Path compacted = journal.resolveSibling(journal.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (PlayerDbRecord p : players.values()) {
+                out.write(entry(p, null));
+                out.newLine();
+            }
+        }
+        // opened before the move, so once the new journal is in place there is a channel to it,
+        // and a failure leaves the old journal and channel in use
+        FileChannel next = FileChannel.open(compacted, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            next.force(true);
+            Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+
+        FileChannel previous = channel;
+        channel = next;
+        if ( previous != null ) {
+            previous.close();
+        }
+        journalBytes = compactedBytes = channel.size();
+    }
+
+    public synchronized void close() throws IOException {
+        if ( channel != null ) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public synchronized void create(PlayerDbRecord player) {
+        if ( players.containsKey(player.getId()) ) {
+            throw new UpdateConflictException(player.getId(), null);
+        }
+        PlayerDbRecord stored = copy(player);
+        stored.setRev(nextRevision(null));
+        append(entry(stored, null));
+        players.put(stored.getId(), stored);
+        player.setRev(stored.getRev());
+    }
+
+    @Override
+    public synchronized CompletionStage<PlayerDbRecord> update(PlayerDbRecord player) {
+        // writes are serialized here, so nothing can change 'current' before the put below
+        PlayerDbRecord current = players.get(player.getId());
+        if ( current == null ) {
+            return CompletableFuture.failedFuture(new DocumentNotFoundException(player.getId()));
+        }
+        if ( !current.getRev().equals(player.getRev()) ) {
+            return CompletableFuture.failedFuture(new UpdateConflictException(player.getId(), player.getRev()));
+        }
+        PlayerDbRecord stored = copy(player);
+        stored.setRev(nextRevision(current.getRev()));
+        try {
+            append(entry(stored, null));
+        } catch (UncheckedIOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        players.put(stored.getId(), stored);
+        player.setRev(stored.getRev());
+        return CompletableFuture.completedFuture(player);
+    }
+
+    @Override
+    public synchronized void delete(String id) {
+        if ( !players.containsKey(id) ) {
+            throw new DocumentNotFoundException(id);
+        }
+        append(entry(null, id));
+        players.remove(id);
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return channel != null && channel.isOpen();
+    }
+
+    @Override
+    public String getName() {
+        return journal.toString();
+    }
+
+    private void replay() throws IOException {
+        int lines = 0;
+        try (BufferedReader in = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ( (line = in.readLine()) != null ) {
+                lines++;
+                JsonNode entry;
+                try {
+                    entry = mapper.readTree(line);
+                } catch (IOException e) {
+                    // a torn final write, from a crash while appending
+                    Log.log(Level.WARNING, this, "Ignoring unreadable journal line {0} in {1}", lines, journal);
+                    continue;
+                }
+                if ( entry.has("player") ) {
+                    PlayerDbRecord p = mapper.treeToValue(entry.get("player"), PlayerDbRecord.class);
+                    players.put(p.getId(), p);
+                } else if ( entry.has("removed") ) {
+                    players.remove(entry.get("removed").asText());
+                }
+            }
+        }
+        Log.log(Level.FINER, this, "Replayed {0} journal entries from {1}", lines, journal);
+    }
+
+    private String entry(PlayerDbRecord player, String removed) {
+        ObjectNode entry = mapper.createObjectNode();
+        if ( player != null ) {
+            entry.set("player", mapper.valueToTree(player));
+        } else {
+            entry.put("removed", removed);
+        }
+        return entry.toString();
+    }
+
+    private void append(String entry) {
+        ByteBuffer bytes = ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+        try {
+            while ( bytes.hasRemaining() ) {
+                channel.write(bytes);
+            }
+            if ( fsync ) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            // don't leave part of a line for the next entry to be appended to
+            try {
+                channel.truncate(journalBytes);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new UncheckedIOException("Unable to write to " + journal, e);
+        }
+        journalBytes += bytes.limit();
+
+        if ( compactBytes > 0 && journalBytes > compactBytes && journalBytes > 2 * compactedBytes ) {
+            long before = journalBytes;
+            try {
+                compact();
+                Log.log(Level.FINE, this, "Compacted {0} from {1} to {2} bytes", journal, before, journalBytes);
+            } catch (IOException e) {
+                // the entry is in the journal, so the write stands, try again once it has doubled
+                compactedBytes = journalBytes;
+                Log.log(Level.WARNING, this, "Unable to compact {0}, it is {1} bytes", journal, journalBytes, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.gameontext.player.control;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.Link;
+import javax.ws.rs.core.Response;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.Messages;
+import org.gameontext.player.utils.BoundedCache;
+
+/**
+ * The last successful response to each read, kept so that when couchdb can't be
+ * reached (timeouts exhausted, or the circuit breaker open) the fallback can serve
+ * it, marked as stale, rather than failing or making something up.
+ *
+ * Stale responses carry a 'Warning: 110' header and X-Data-Age, the seconds since
+ * the response was recorded. Only responses that are the same for every caller
+ * may be recorded, so credentials must be redacted first.
+ *
+ * Holds at most LAST_KNOWN_GOOD_SIZE responses (least recently used go first), and
+ * none older than LAST_KNOWN_GOOD_MAX_AGE seconds are served.
+ */
+@ApplicationScoped
+public class LastKnownGood {
+
+    public static final String DATA_AGE = "X-Data-Age";
+    private static final String STALE_WARNING = "110 player \"Response is Stale\"";
+
+    @ConfigProperty( name = "LAST_KNOWN_GOOD_SIZE", defaultValue = "1000")
+    protected int maxSize;
+
+    @ConfigProperty( name = "LAST_KNOWN_GOOD_MAX_AGE", defaultValue = "600")
+    protected long maxAgeSeconds;
+
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong unavailable = new AtomicLong();
+
+    private BoundedCache<String, Recorded> entries;
+
+    private static class Recorded {
+        final Object entity;
+        final Link[] links;
+        final long recorded;
+
+        Recorded(Object entity, Link[] links) {
+            this.entity = entity;
+            this.links = links;
+            this.recorded = System.nanoTime();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        entries = new BoundedCache<>(maxSize);
+    }
+
+    /**
+     * @return a key for the read, from the resource path and its parameters
+     */
+    public static String key(String path, Object... params) {
+        StringBuilder key = new StringBuilder(path);
+        for (Object param : params) {
+            key.append('\u0000').append(param);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Remember a successful response entity (and its links), it must not carry credentials.
+     */
+    public void record(String key, Object entity, Link... links) {
+        if ( maxSize <= 0 ) {
+            return;
+        }
+        entries.put(key, new Recorded(entity, links));
+    }
+
+    /**
+     * @return the last recorded response, marked as stale
+     * @throws PlayerAccountModificationException (503) if there is none young enough to serve
+     */
+    public Response stale(String key) {
+        Recorded r = maxSize <= 0 ? null : entries.get(key);
+        long age = r == null ? 0 : TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - r.recorded);
+        if ( r == null || age > maxAgeSeconds ) {
+            unavailable.incrementAndGet();
+            throw new PlayerAccountModificationException(
+                    Response.Status.SERVICE_UNAVAILABLE,
+                    Messages.UNAVAILABLE,
+                    "The player database can't be reached, and no recent copy of this response is held");
+        }
+        served.incrementAndGet();
+        return Response.ok().entity(r.entity)
+                .links(r.links)
+                .header("Warning", STALE_WARNING)
+                .header(DATA_AGE, age)
+                .build();
+    }
+
+    @Gauge(name = "lastKnownGood_served", unit = MetricUnits.NONE,
+        tags = "label=lastKnownGood")
+    public long getServedCount() {
+        return served.get();
+    }
+
+    @Gauge(name = "lastKnownGood_unavailable", unit = MetricUnits.NONE,
+        tags = "label=lastKnownGood")
+    public long getUnavailableCount() {
+        return unavailable.get();
+    }
+
+    @Gauge(name = "lastKnownGood_size", unit = MetricUnits.NONE,
+        tags = "label=lastKnownGood")
+    public long getSize() {
+        return entries.size();
+    }
+}
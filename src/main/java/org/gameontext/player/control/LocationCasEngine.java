@@ -0,0 +1,226 @@
+package org.gameontext.player.control;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.UpdateConflictException;
+import org.gameontext.player.PlayerApplication;
+import org.gameontext.player.PlayerRecords;
+import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationUpdateResult;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.Log;
+
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+
+/**
+ * Compare-and-set for player locations.
+ *
+ * Moves for the same player are serialized locally, by queueing each move
+ * behind the previous one for the same stripe of player ids, so concurrent
+ * moves for one player wait their turn instead of colliding in couchdb.
+ *
+ * A move succeeds only if the player is in the expected old location (or has no
+ * location yet). If couchdb rejects the write because the document's _rev moved on
+ * (another replica, or a profile update), the location is re-read and the location
+ * check applied again, so only a real change of location is reported as a conflict.
+ */
+@ApplicationScoped
+public class LocationCasEngine {
+
+    @Inject
+    protected PlayerStore store;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @Inject
+    protected PlayerCache cache;
+
+    @Inject
+    protected RoomOccupancyIndex index;
+
+    @Inject
+    protected LocationWriteBehind writeBehind;
+
+    @ConfigProperty( name = "LOCATION_CAS_STRIPES", defaultValue = "64")
+    protected int stripeCount;
+
+    @ConfigProperty( name = "LOCATION_CAS_RETRIES", defaultValue = "5")
+    protected int maxRetries;
+
+    /** the last queued move for each stripe, completes when that move is done */
+    private AtomicReferenceArray<CompletableFuture<Void>> tails;
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        tails = new AtomicReferenceArray<>(Math.max(1, stripeCount));
+        for (int i = 0; i < tails.length(); i++) {
+            tails.set(i, CompletableFuture.completedFuture(null));
+        }
+    }
+
+    /**
+     * Move a player, if they are currently in change.getOldLocation().
+     * @return OK with the new location, or CONFLICT with the player's current location.
+     *   Fails with DocumentNotFoundException if there is no such player.
+     */
+    public CompletionStage<LocationUpdateResult> move(String playerId, LocationChange change) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture<Void> previous = tails.getAndSet(stripe(playerId), done);
+
+        CompletableFuture<LocationUpdateResult> result;
+        if ( previous.isDone() ) {
+            // nothing ahead of us, run on this thread
+            result = guard(() -> attempt(playerId, change, 0));
+        } else {
+            queued.incrementAndGet();
+            result = previous.thenComposeAsync(ignored -> guard(() -> attempt(playerId, change, 0)),
+                    Infrastructure.getDefaultWorkerPool());
+        }
+
+        // let the next move for this stripe go, however this one ended
+        result.whenComplete((r, t) -> done.complete(null));
+        return result;
+    }
+
+    private CompletionStage<LocationUpdateResult> attempt(String playerId, LocationChange change, int attempt) {
+        if ( writeBehind.isEnabled() ) {
+            return writeBehind(playerId, change);
+        }
+        return loadLocation(playerId).thenCompose(l -> {
+            String current = l.getLocation();
+            if ( current != null && !current.equals(change.getOldLocation()) ) {
+                // the player really is somewhere else
+                conflicts.incrementAndGet();
+                return CompletableFuture.completedFuture(
+                        new LocationUpdateResult(LocationUpdateResult.CONFLICT, current));
+            }
+
+            l.setLocation(change.getNewLocation());
+            return saveLocation(l).handle((updated, t) -> {
+                if ( t == null ) {
+                    if ( updated.isSeparate() ) {
+                        cache.invalidate(playerId);
+                    } else {
+                        cache.put(updated.getPlayer());
+                    }
+                    index.move(updated);
+                    Log.log(Level.FINEST, this, "{0} moved from {1} to {2}", playerId, change.getOldLocation(), change.getNewLocation());
+                    return CompletableFuture.completedFuture(new LocationUpdateResult(LocationUpdateResult.OK,
+                            updated.getLocation()==null?PlayerApplication.FIRST_ROOM:updated.getLocation()));
+                }
+
+                Throwable cause = unwrap(t);
+                if ( cause instanceof UpdateConflictException && attempt < maxRetries ) {
+                    // stale _rev, not necessarily a different location: read it again and re-check
+                    retries.incrementAndGet();
+                    return guard(() -> attempt(playerId, change, attempt + 1));
+                }
+                return CompletableFuture.<LocationUpdateResult>failedFuture(cause);
+            }).thenCompose(next -> next);
+        });
+    }
+
+    /**
+     * Moves are serialized per player here, so the check and the journal append can't interleave.
+     */
+    private CompletionStage<LocationUpdateResult> writeBehind(String playerId, LocationChange change) {
+        return currentLocation(playerId).thenApply(current -> {
+            if ( current != null && !current.equals(change.getOldLocation()) ) {
+                conflicts.incrementAndGet();
+                return new LocationUpdateResult(LocationUpdateResult.CONFLICT, current);
+            }
+            writeBehind.append(playerId, change.getNewLocation());
+            cache.invalidate(playerId);
+            index.movePending(playerId, change.getNewLocation());
+            Log.log(Level.FINEST, this, "{0} moved from {1} to {2}, pending flush", playerId, change.getOldLocation(), change.getNewLocation());
+            return new LocationUpdateResult(LocationUpdateResult.OK,
+                    change.getNewLocation()==null?PlayerApplication.FIRST_ROOM:change.getNewLocation());
+        });
+    }
+
+    /**
+     * With write-behind, the player's location from their pending move, else the cache, and
+     * only then the store (whose record carries any pending move too), so a busy player's
+     * moves don't each wait on a read.
+     */
+    private CompletionStage<String> currentLocation(String playerId) {
+        LocationWriteBehind.PendingMove move = writeBehind.getPendingMove(playerId);
+        if ( move != null ) {
+            return CompletableFuture.completedFuture(move.location);
+        }
+        PlayerDbRecord cached = cache.get(playerId);
+        if ( cached != null ) {
+            return CompletableFuture.completedFuture(cached.getLocation());
+        }
+        return store.get(playerId).thenApply(PlayerDbRecord::getLocation);
+    }
+
+    private CompletionStage<PlayerLocationRecord> loadLocation(String playerId) {
+        if ( store.isCouchDb() ) {
+            return records.loadLocation(playerId);
+        }
+        return store.get(playerId).thenApply(PlayerLocationRecord::embeddedIn);
+    }
+
+    private CompletionStage<PlayerLocationRecord> saveLocation(PlayerLocationRecord l) {
+        if ( store.isCouchDb() ) {
+            return records.saveLocation(l);
+        }
+        l.getPlayer().setLocation(l.getLocation());
+        return store.update(l.getPlayer()).thenApply(p -> { l.setRev(p.getRev()); return l; });
+    }
+
+    /** ektorp reports failures by throwing, so make sure they end up in the stage */
+    private static <T> CompletableFuture<T> guard(Supplier<CompletionStage<T>> work) {
+        try {
+            return work.get().toCompletableFuture();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        return (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+    }
+
+    private int stripe(String playerId) {
+        return Math.floorMod(playerId.hashCode(), tails.length());
+    }
+
+    @Gauge(name = "locationCas_queued", unit = MetricUnits.NONE,
+        tags = "label=locationCasEngine")
+    public long getQueued() {
+        return queued.get();
+    }
+
+    @Gauge(name = "locationCas_retries", unit = MetricUnits.NONE,
+        tags = "label=locationCasEngine")
+    public long getRetries() {
+        return retries.get();
+    }
+
+    @Gauge(name = "locationCas_conflicts", unit = MetricUnits.NONE,
+        tags = "label=locationCasEngine")
+    public long getConflicts() {
+        return conflicts.get();
+    }
+}
@@ -0,0 +1,78 @@
+package org.gameontext.player.control;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.ViewQuery;
+import org.gameontext.player.PlayerRecords;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.Log;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Moves locations out of player records into loc:&lt;playerId&gt; documents,
+ * for a database switching to the split location layout.
+ *
+ * Migration isn't required, players are migrated anyway the first time they move,
+ * but until then every read of an unmigrated player costs a second lookup.
+ * Only players with a location and no location document are migrated, so this is
+ * safe to repeat, and a location document created by a move while this runs wins.
+ * The location left in the player record is not removed, it is ignored once the
+ * location document exists.
+ */
+@ApplicationScoped
+public class LocationMigration {
+
+    private static final int BATCH_SIZE = 500;
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @ConfigProperty( name = "PLAYER_LOCATION_MIGRATE", defaultValue = "false")
+    protected boolean enabled;
+
+    void start(@Observes StartupEvent event) {
+        if ( !enabled || !records.isSplitLocations() ) {
+            return;
+        }
+        Thread migration = new Thread(this::migrate, "location-migration");
+        migration.setDaemon(true);
+        migration.start();
+    }
+
+    private void migrate() {
+        try {
+            ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true);
+            List<String> ids = db.queryView(all).getRows().stream()
+                    .map(row -> row.getId())
+                    .filter(id -> !PlayerLocationRecord.isLocationId(id))
+                    .collect(Collectors.toList());
+
+            int migrated = 0;
+            for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+                List<PlayerLocationRecord> pending = records.loadLocations(ids.subList(i, Math.min(i + BATCH_SIZE, ids.size())))
+                        .values().stream()
+                        .filter(l -> l.getRev() == null && l.getLocation() != null)
+                        .collect(Collectors.toList());
+                if ( !pending.isEmpty() ) {
+                    // conflicts mean the player moved (and so migrated) meanwhile
+                    migrated += pending.size() - records.saveLocations(pending).size();
+                }
+            }
+            Log.log(Level.INFO, this, "Location migration complete, {0} of {1} players migrated", migrated, ids.size());
+        } catch (Exception e) {
+            Log.log(Level.WARNING, this, "Location migration failed, unmigrated players will migrate when they move", e);
+        }
+    }
+}
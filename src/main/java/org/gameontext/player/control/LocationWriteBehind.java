@@ -0,0 +1,434 @@
+package org.gameontext.player.control;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.PlayerRecords;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Write-behind for location moves.
+ *
+ * When enabled, a move is acknowledged once it is appended to a local journal, and
+ * the player's new location is served from memory until it reaches couchdb.
+ * A background flusher writes the pending locations in _bulk_docs batches, so a
+ * player who moves several times between flushes costs one write.
+ *
+ * The journal is a series of memory-mapped segment files, each holding one line of
+ * json per move. Once a move has been flushed, a marker naming it (by segment and
+ * offset) is journaled too, so a replay skips it even while its segment is kept
+ * for other moves. A segment is deleted once every move in it has been flushed, or
+ * replaced by a later move. At startup the journal is replayed before the app
+ * reports ready, and the replayed moves that weren't flushed are flushed like any others.
+ *
+ * This instance's pending moves win over changes made elsewhere, so moves for
+ * a player should be routed to one instance.
+ */
+@ApplicationScoped
+public class LocationWriteBehind {
+
+    private static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+    private static final long SHUTDOWN_WAIT_MS = 5000;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @Inject
+    protected PlayerStore store;
+
+    @Inject
+    protected RoomOccupancyIndex index;
+
+    @ConfigProperty( name = "LOCATION_WRITE_BEHIND", defaultValue = "false")
+    protected boolean enabled;
+
+    @ConfigProperty( name = "LOCATION_JOURNAL", defaultValue = "locations.journal")
+    protected String journalName;
+
+    @ConfigProperty( name = "LOCATION_JOURNAL_FSYNC", defaultValue = "true")
+    protected boolean fsync;
+
+    @ConfigProperty( name = "LOCATION_FLUSH_INTERVAL_MS", defaultValue = "250")
+    protected long flushInterval;
+
+    @ConfigProperty( name = "LOCATION_FLUSH_BATCH", defaultValue = "500")
+    protected int flushBatch;
+
+    /**
+     * A move that hasn't reached couchdb yet.
+     */
+    public static class PendingMove {
+        /** the player's new location, null for the first room */
+        public final String location;
+        final long segment;
+        /** where the move's line starts in its segment */
+        final int offset;
+
+        PendingMove(String location, long segment, int offset) {
+            this.location = location;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /** player id -> latest move not yet in couchdb */
+    private final ConcurrentMap<String, PendingMove> pending = new ConcurrentHashMap<>();
+
+    /** segment number -> file, for segments that may still hold unflushed moves */
+    private final TreeMap<Long, Path> segments = new TreeMap<>();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private Path journal;
+    private long segment;
+    private MappedByteBuffer buffer;
+
+    private volatile boolean replayed = false;
+    private volatile boolean running = false;
+    private Thread flusher;
+
+    private final AtomicLong flushed = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+
+    void start(@Observes StartupEvent event) throws IOException {
+        if ( !isEnabled() ) {
+            replayed = true;
+            return;
+        }
+        journal = Paths.get(journalName).toAbsolutePath();
+        replay();
+        replayed = true;
+
+        running = true;
+        flusher = new Thread(this::flushLoop, "location-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    void stop(@Observes ShutdownEvent event) {
+        if ( !running ) {
+            return;
+        }
+        running = false;
+        flusher.interrupt();
+        try {
+            flusher.join(SHUTDOWN_WAIT_MS);
+            // anything left stays in the journal for the next start
+            flush();
+        } catch (Exception e) {
+            Log.log(Level.WARNING, this, "Unable to flush pending locations at shutdown, {0} remain in the journal", pending.size());
+        }
+    }
+
+    public boolean isEnabled() {
+        // moves are written behind to couchdb, the other stores are already local
+        return enabled && store.isCouchDb();
+    }
+
+    /**
+     * @return true once the journal has been replayed (or if write-behind is off)
+     */
+    public boolean isReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Record a move, once this returns the move is in the journal.
+     * Callers must serialize moves for a player (see LocationCasEngine).
+     */
+    public void append(String playerId, String location) {
+        ObjectNode entry = mapper.createObjectNode().put("id", playerId);
+        if ( location != null ) {
+            entry.put("location", location);
+        }
+        synchronized (segments) {
+            int offset = write(entry);
+            if ( fsync ) {
+                buffer.force();
+            }
+            pending.put(playerId, new PendingMove(location, segment, offset));
+        }
+    }
+
+    /**
+     * Append a line to the journal, must hold the segments lock.
+     * @return the offset of the line in the current segment
+     */
+    private int write(ObjectNode entry) {
+        byte[] bytes = (entry.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+        if ( buffer.remaining() < bytes.length ) {
+            openSegment(segment + 1);
+        }
+        int offset = buffer.position();
+        buffer.put(bytes);
+        return offset;
+    }
+
+    /** journal that these moves are in couchdb, so a replay doesn't write them again */
+    private void markFlushed(List<PendingMove> moves, List<String> ids) {
+        synchronized (segments) {
+            for (int i = 0; i < moves.size(); i++) {
+                PendingMove move = moves.get(i);
+                write(mapper.createObjectNode().put("flushed", ids.get(i))
+                        .put("segment", move.segment).put("offset", move.offset));
+            }
+            if ( fsync ) {
+                buffer.force();
+            }
+        }
+    }
+
+    /**
+     * @return true if the player has a move that hasn't reached couchdb
+     */
+    public boolean isPending(String playerId) {
+        return pending.containsKey(playerId);
+    }
+
+    /**
+     * @return the player's move that hasn't reached couchdb, or null if they have none
+     */
+    public PendingMove getPendingMove(String playerId) {
+        return pending.get(playerId);
+    }
+
+    /**
+     * Replace the location in the record with the player's pending move, if they have one.
+     */
+    public PlayerDbRecord overlay(PlayerDbRecord p) {
+        PendingMove move = pending.get(p.getId());
+        if ( move != null ) {
+            p.setLocation(move.location);
+        }
+        return p;
+    }
+
+    /**
+     * @return player id -> location, for every player with a pending move
+     */
+    public Map<String, String> getPendingLocations() {
+        Map<String, String> result = new HashMap<>();
+        pending.forEach((id, move) -> result.put(id, move.location));
+        return result;
+    }
+
+    private void flushLoop() {
+        while ( running ) {
+            try {
+                Thread.sleep(flushInterval);
+                flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                flushFailures.incrementAndGet();
+                Log.log(Level.WARNING, this, "Unable to flush pending locations, will retry", e);
+            }
+        }
+    }
+
+    private void flush() {
+        while ( !pending.isEmpty() ) {
+            Map<String, PendingMove> batch = new HashMap<>();
+            for (Map.Entry<String, PendingMove> e : pending.entrySet()) {
+                batch.put(e.getKey(), e.getValue());
+                if ( batch.size() >= flushBatch ) {
+                    break;
+                }
+            }
+
+            Map<String, PlayerLocationRecord> current = records.loadLocations(batch.keySet());
+            List<PlayerLocationRecord> writes = new ArrayList<>();
+            batch.forEach((id, move) -> {
+                PlayerLocationRecord l = current.get(id);
+                if ( l == null ) {
+                    // the player was deleted, nothing to write
+                    pending.remove(id, move);
+                } else {
+                    l.setLocation(move.location);
+                    writes.add(l);
+                }
+            });
+
+            // conflicts stay pending, and are read again on the next pass
+            int failures = 0;
+            if ( !writes.isEmpty() ) {
+                List<String> failed = new ArrayList<>(records.saveLocations(writes));
+                failures = failed.size();
+                List<PendingMove> written = new ArrayList<>();
+                List<String> writtenIds = new ArrayList<>();
+                for (PlayerLocationRecord l : writes) {
+                    if ( !failed.contains(l.getPlayerId()) ) {
+                        written.add(batch.get(l.getPlayerId()));
+                        writtenIds.add(l.getPlayerId());
+                    }
+                }
+                // marked before they stop being pending, so their segments are still there
+                markFlushed(written, writtenIds);
+                for (int i = 0; i < written.size(); i++) {
+                    // only if there's been no newer move meanwhile
+                    pending.remove(writtenIds.get(i), written.get(i));
+                    flushed.incrementAndGet();
+                }
+            }
+            releaseSegments();
+
+            if ( failures == batch.size() ) {
+                // nothing went through, wait for the next interval
+                flushFailures.incrementAndGet();
+                return;
+            }
+        }
+        releaseSegments();
+    }
+
+    /** delete segments whose moves have all been flushed or replaced */
+    private void releaseSegments() {
+        synchronized (segments) {
+            long oldest = pending.values().stream().mapToLong(m -> m.segment).min().orElse(segment);
+            if ( pending.isEmpty() && buffer.position() > 0 ) {
+                // start a fresh segment so this one can go
+                openSegment(segment + 1);
+                oldest = segment;
+            }
+            while ( !segments.isEmpty() && segments.firstKey() < oldest ) {
+                Path old = segments.pollFirstEntry().getValue();
+                try {
+                    Files.deleteIfExists(old);
+                } catch (IOException e) {
+                    Log.log(Level.WARNING, this, "Unable to delete journal segment {0}", old, e);
+                }
+            }
+        }
+    }
+
+    private void replay() throws IOException {
+        Path dir = journal.getParent();
+        String prefix = journal.getFileName().toString() + ".";
+        Files.createDirectories(dir);
+
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(f -> f.getFileName().toString().startsWith(prefix))
+                 .forEach(f -> {
+                     try {
+                         segments.put(Long.parseLong(f.getFileName().toString().substring(prefix.length())), f);
+                     } catch (NumberFormatException e) {
+                         // not one of ours
+                     }
+                 });
+        }
+
+        int moves = 0;
+        int marked = 0;
+        int skipped = 0;
+        for (Map.Entry<Long, Path> s : segments.entrySet()) {
+            byte[] data = Files.readAllBytes(s.getValue());
+            int start = 0;
+            int line = 0;
+            for (int i = 0; i < data.length && data[i] != 0; i++) {
+                if ( data[i] == '\n' ) {
+                    line++;
+                    int offset = start;
+                    String text = new String(data, start, i - start, StandardCharsets.UTF_8);
+                    start = i + 1;
+                    try {
+                        JsonNode entry = mapper.readTree(text);
+                        JsonNode flushedId = entry.path("flushed");
+                        if ( flushedId.isTextual() ) {
+                            // drop the move if it is still the player's latest, a later move stays
+                            PendingMove move = pending.get(flushedId.asText());
+                            if ( move != null && move.segment == entry.path("segment").asLong()
+                                    && move.offset == entry.path("offset").asInt() ) {
+                                pending.remove(flushedId.asText());
+                                marked++;
+                            }
+                            continue;
+                        }
+                        JsonNode id = entry.path("id");
+                        if ( !id.isTextual() ) {
+                            throw new IOException("no player id");
+                        }
+                        JsonNode location = entry.path("location");
+                        pending.put(id.asText(), new PendingMove(location.isTextual() ? location.asText() : null, s.getKey(), offset));
+                        moves++;
+                    } catch (IOException e) {
+                        // one damaged line shouldn't keep every other move (and the app) down
+                        skipped++;
+                        Log.log(Level.WARNING, this, "Skipping unreadable move at line {0} of {1}: {2}", line, s.getValue(), e.getMessage());
+                    }
+                }
+            }
+            // anything after the last newline is a move that was never acknowledged
+        }
+
+        synchronized (segments) {
+            openSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+        }
+        pending.forEach((id, move) -> index.movePending(id, move.location));
+        Log.log(Level.INFO, this, "Replayed {0} location moves from {1}, {2} were already flushed, {3} players have moves pending, skipped {4} unreadable",
+                moves, journal, marked, pending.size(), skipped);
+    }
+
+    /** must hold the segments lock */
+    private void openSegment(long number) {
+        Path file = journal.resolveSibling(journal.getFileName() + "." + String.format("%012d", number));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to create journal segment " + file, e);
+        }
+        segment = number;
+        segments.put(number, file);
+    }
+
+    @Gauge(name = "locationJournal_pending", unit = MetricUnits.NONE,
+        tags = "label=locationWriteBehind")
+    public long getPendingCount() {
+        return pending.size();
+    }
+
+    @Gauge(name = "locationJournal_flushed", unit = MetricUnits.NONE,
+        tags = "label=locationWriteBehind")
+    public long getFlushedCount() {
+        return flushed.get();
+    }
+
+    @Gauge(name = "locationJournal_flushFailures", unit = MetricUnits.NONE,
+        tags = "label=locationWriteBehind")
+    public long getFlushFailures() {
+        return flushFailures.get();
+    }
+}
@@ -0,0 +1,130 @@
+package org.gameontext.player.control;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.UpdateConflictException;
+import org.gameontext.player.PlayerApplication;
+import org.gameontext.player.entity.PlayerDbRecord;
+
+/**
+ * Player records held in memory, for tests, benchmarks of the http layer,
+ * and small nodes that don't need the records to outlive them.
+ *
+ * No locks are taken: each write is a compare-and-set of the stored record,
+ * so a write from a stale revision fails just as it would in couchdb.
+ * Stored records are never handed out, callers always get a copy.
+ */
+public class MemoryPlayerStore implements PlayerStore {
+
+    protected final ConcurrentMap<String, PlayerDbRecord> players = new ConcurrentHashMap<>();
+
+    @Override
+    public CompletionStage<PlayerDbRecord> get(String id) {
+        PlayerDbRecord p = players.get(id);
+        if ( p == null ) {
+            return CompletableFuture.failedFuture(new DocumentNotFoundException(id));
+        }
+        return CompletableFuture.completedFuture(copy(p));
+    }
+
+    @Override
+    public List<PlayerDbRecord> getAll(Collection<String> ids) {
+        List<PlayerDbRecord> result = new ArrayList<>();
+        for (String id : ids) {
+            PlayerDbRecord p = players.get(id);
+            if ( p != null ) {
+                result.add(copy(p));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void create(PlayerDbRecord player) {
+        PlayerDbRecord stored = copy(player);
+        stored.setRev(nextRevision(null));
+        if ( players.putIfAbsent(player.getId(), stored) != null ) {
+            throw new UpdateConflictException(player.getId(), null);
+        }
+        player.setRev(stored.getRev());
+    }
+
+    @Override
+    public CompletionStage<PlayerDbRecord> update(PlayerDbRecord player) {
+        PlayerDbRecord current = players.get(player.getId());
+        if ( current == null ) {
+            return CompletableFuture.failedFuture(new DocumentNotFoundException(player.getId()));
+        }
+        PlayerDbRecord stored = copy(player);
+        stored.setRev(nextRevision(current.getRev()));
+        // replace compares by identity, so this fails if anyone wrote since 'current' was read
+        if ( !current.getRev().equals(player.getRev()) || !players.replace(player.getId(), current, stored) ) {
+            return CompletableFuture.failedFuture(new UpdateConflictException(player.getId(), player.getRev()));
+        }
+        player.setRev(stored.getRev());
+        return CompletableFuture.completedFuture(player);
+    }
+
+    @Override
+    public void delete(String id) {
+        if ( players.remove(id) == null ) {
+            throw new DocumentNotFoundException(id);
+        }
+    }
+
+    @Override
+    public List<PlayerDbRecord> listAll() {
+        List<PlayerDbRecord> result = new ArrayList<>(players.size());
+        players.values().forEach(p -> result.add(copy(p)));
+        return result;
+    }
+
+    @Override
+    public List<String> listByLocation(String siteId) {
+        List<String> result = new ArrayList<>();
+        players.values().forEach(p -> {
+            String location = p.getLocation() == null ? PlayerApplication.FIRST_ROOM : p.getLocation();
+            if ( location.equals(siteId) ) {
+                result.add(p.getId());
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "memory";
+    }
+
+    /** @return the revision after 'rev', in couchdb's N-hash form */
+    protected static String nextRevision(String rev) {
+        long generation = PlayerCache.revision(rev) + 1;
+        return generation + "-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    protected static PlayerDbRecord copy(PlayerDbRecord p) {
+        PlayerDbRecord c = new PlayerDbRecord();
+        c.setId(p.getId());
+        c.setRev(p.getRev());
+        c.setName(p.getName());
+        c.setFavoriteColor(p.getFavoriteColor());
+        c.setStory(p.getStory());
+        c.setPlayerMode(p.getPlayerMode());
+        c.setApiKey(p.getApiKey());
+        c.setLocation(p.getLocation());
+        return c;
+    }
+}
@@ -0,0 +1,266 @@
+package org.gameontext.player.control;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.CouchChangesFeed;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.BoundedCache;
+import org.gameontext.player.utils.Log;
+
+/**
+ * Bounded, read-through cache of player records, keyed by player id.
+ *
+ * Entries expire after PLAYER_CACHE_TTL seconds, and the least recently used
+ * entries are evicted once PLAYER_CACHE_SIZE is reached. Entries are dropped
+ * when the couchdb changes feed reports a revision we don't hold, so replicas
+ * sharing a database don't serve each other's stale records. The revision the feed
+ * reported, and when a player was last invalidated, are remembered for a while (as
+ * long as an entry lives), so a read that was already under way can't cache what
+ * the change replaced. Revisions alone don't cover moves with split locations, which
+ * leave the player document's revision as it was, hence reads are given the time
+ * they started loading (see put).
+ *
+ * A store shared with other instances (couchdb, sharded or not) without a changes
+ * feed to report their writes would have the cache serve stale records for up to
+ * the TTL, so there the cache is off.
+ *
+ * Records handed out by the cache are shared, callers must not modify them.
+ */
+@ApplicationScoped
+public class PlayerCache {
+
+    @ConfigProperty( name = "PLAYER_CACHE_SIZE", defaultValue = "10000")
+    protected int maxSize;
+
+    @ConfigProperty( name = "PLAYER_CACHE_TTL", defaultValue = "300")
+    protected long ttlSeconds;
+
+    @Inject
+    protected PlayerStore store;
+
+    @Inject
+    protected CouchChangesFeed feed;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private BoundedCache<String, CachedRecord> entries;
+    /** player id -> what we were told changed, kept after the entry is dropped */
+    private BoundedCache<String, Change> changes;
+    private long ttlNanos;
+    private boolean enabled;
+
+    private static class CachedRecord {
+        final PlayerDbRecord record;
+        final long loaded;
+
+        CachedRecord(PlayerDbRecord record) {
+            this(record, System.nanoTime());
+        }
+
+        CachedRecord(PlayerDbRecord record, long loaded) {
+            this.record = record;
+            this.loaded = loaded;
+        }
+    }
+
+    private static class Change {
+        /** the latest revision the changes feed reported, older records are stale */
+        final long revision;
+        /** the player was invalidated at 'at', so records loaded before then may be stale */
+        final boolean invalidated;
+        final long at = System.nanoTime();
+
+        Change(long revision, boolean invalidated) {
+            this.revision = revision;
+            this.invalidated = invalidated;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        enabled = maxSize > 0;
+        if ( enabled && store.isShared() && !feed.isEnabled() ) {
+            enabled = false;
+            Log.log(Level.INFO, this, "Player cache is off, other instances write to {0} and there is no changes feed to report it",
+                    store.getName());
+        }
+        entries = new BoundedCache<>(maxSize);
+        changes = new BoundedCache<>(maxSize);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the cached record, or null if it is absent or expired.
+     */
+    public PlayerDbRecord get(String id) {
+        if ( !isEnabled() ) {
+            return null;
+        }
+        CachedRecord e = entries.get(id);
+        if ( e != null && System.nanoTime() - e.loaded > ttlNanos ) {
+            entries.remove(id, e);
+            evictions.incrementAndGet();
+            e = null;
+        }
+        if ( e == null ) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.record;
+    }
+
+    /**
+     * Cache a record that is current as of now, e.g. one that was just written.
+     */
+    public void put(PlayerDbRecord record) {
+        put(record, System.nanoTime());
+    }
+
+    /**
+     * Cache a record, unless a newer revision of it is already held or was reported by
+     * the changes feed, or the player was invalidated after the record began loading.
+     * @param loadStarted System.nanoTime() from before the record was read
+     */
+    public void put(PlayerDbRecord record, long loadStarted) {
+        if ( !isEnabled() || record == null || record.getId() == null ) {
+            return;
+        }
+        store(record, loadStarted);
+    }
+
+    private void store(PlayerDbRecord record, long loaded) {
+        long revision = revision(record.getRev());
+        entries.update(record.getId(), e -> {
+            if ( e != null && revision(e.record.getRev()) > revision ) {
+                return e;
+            }
+            // read inside the update, which onChange follows, so a change it recorded is seen here
+            Change c = changes.peek(record.getId());
+            if ( c != null && System.nanoTime() - c.at <= ttlNanos
+                    && (c.revision > revision || (c.invalidated && loaded - c.at <= 0)) ) {
+                return e;
+            }
+            return new CachedRecord(record, loaded);
+        });
+    }
+
+    public void invalidate(String id) {
+        if ( !isEnabled() ) {
+            return;
+        }
+        // as in onChange, recorded before the entry goes
+        changes.update(id, c -> new Change(c == null ? 0 : c.revision, true));
+        entries.remove(id);
+    }
+
+    public void clear() {
+        if ( !isEnabled() ) {
+            return;
+        }
+        entries.clear();
+        changes.clear();
+    }
+
+    /**
+     * Hand every unexpired entry, and how many nanoseconds ago it was loaded, to the consumer, for PlayerSnapshots.
+     */
+    void snapshot(BiConsumer<PlayerDbRecord, Long> consumer) {
+        if ( !isEnabled() ) {
+            return;
+        }
+        long now = System.nanoTime();
+        entries.forEach((id, e) -> {
+            if ( now - e.loaded <= ttlNanos ) {
+                consumer.accept(e.record, now - e.loaded);
+            }
+        });
+    }
+
+    /**
+     * Cache a record from a snapshot, it expires as if it had been loaded 'age' nanoseconds ago.
+     */
+    void restore(PlayerDbRecord record, long age) {
+        if ( !isEnabled() || age > ttlNanos ) {
+            return;
+        }
+        store(record, System.nanoTime() - age);
+    }
+
+    void onChange(@Observes DocumentChange change) {
+        if ( !isEnabled() ) {
+            return;
+        }
+        if ( PlayerLocationRecord.isLocationId(change.getId()) ) {
+            // the cached record carries the location from this document
+            invalidate(PlayerLocationRecord.playerIdOf(change.getId()));
+            return;
+        }
+        // record the change first: a put that comes after the removal below then sees it
+        long revision = revision(change.getRevision());
+        changes.update(change.getId(), c -> c != null && c.revision >= revision ? c : new Change(revision, c != null && c.invalidated));
+        entries.update(change.getId(), e ->
+            e != null && (change.isDeleted() || !change.getRevision().equals(e.record.getRev())) ? null : e);
+    }
+
+    /**
+     * @return the generation part of a couchdb revision (the N in N-hash)
+     */
+    static long revision(String rev) {
+        if ( rev == null ) {
+            return 0;
+        }
+        int dash = rev.indexOf('-');
+        try {
+            return Long.parseLong(dash < 0 ? rev : rev.substring(0, dash));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Gauge(name = "playerCache_hits", unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Gauge(name = "playerCache_misses", unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Gauge(name = "playerCache_evictions", unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getEvictions() {
+        return evictions.get() + entries.getEvictions();
+    }
+
+    @Gauge(name = "playerCache_size", unit = MetricUnits.NONE,
+        tags = "label=playerCache")
+    public long getSize() {
+        if ( !isEnabled() ) {
+            return 0;
+        }
+        return entries.size();
+    }
+}
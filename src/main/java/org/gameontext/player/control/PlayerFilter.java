@@ -15,13 +15,18 @@
  *******************************************************************************/
 package org.gameontext.player.control;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import javax.inject.Inject;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -30,31 +35,21 @@ import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.annotation.WebFilter;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 
-import org.eclipse.microprofile.config.ConfigProvider;
+import org.gameontext.player.control.VerifiedTokenCache.Verified;
 import org.gameontext.signed.SignedJWT;
 import org.gameontext.signed.SignedJWT.AuthenticationState;
 
 @WebFilter(filterName = "playerJWTAuthFilter", urlPatterns = { "/*" })
 public class PlayerFilter implements Filter {
 
-    String pemCert;
+    @Inject
+    SigningKeys signingKeys;
 
-    private static Certificate signingCert = null;
-
-    private synchronized void readCert() throws IOException {
-        try {
-
-            if(null==pemCert || pemCert.equals("x")){
-                pemCert = ConfigProvider.getConfig().getValue("JWT_PUBLIC_CERT", String.class);
-            }
-            CertificateFactory factory = CertificateFactory.getInstance("X.509");
-            signingCert = factory.generateCertificate(new ByteArrayInputStream(pemCert.getBytes()));
-        } catch (CertificateException e) {
-            throw new IOException(e);
-        }
-    }
+    @Inject
+    VerifiedTokenCache verifiedTokens;
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
@@ -62,22 +57,24 @@ public class PlayerFilter implements Filter {
 
     private final static String jwtParamName = "jwt";
     private final static String jwtHeaderName = "gameon-jwt";
+    private final static String attributePrefix = "player.";
+
+    //paths (after the context path) of endpoints that don't use the token, they skip the filter.
+    //name and color are reactive routes, they don't reach the servlet stack at all.
+    private final static Set<String> publicPaths = new HashSet<>(Arrays.asList(
+            "/v1", "/v1/", "/v1/health", "/v1/health/"));
 
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
             throws IOException, ServletException {
 
-        if(signingCert==null){
-            readCert();
+        HttpServletRequest req = ((HttpServletRequest) request);
+        if(publicPaths.contains(req.getRequestURI().substring(req.getContextPath().length()))) {
+            chain.doFilter(request, response);
+            return;
         }
 
-        Object playerId = null;
-        Object story = null;
-        Object playerMode = null;
-        Object audience = null;
-
-        HttpServletRequest req = ((HttpServletRequest) request);
         String jwtHeader = null;
         String jwtParam = null;
 
@@ -91,42 +88,121 @@ public class PlayerFilter implements Filter {
                 return;
             }
         }
-        String[] params = req.getParameterValues(jwtParamName);
-        if(params != null) {
-            for(String param : params) {
-                if(jwtParam == null) {
-                    jwtParam = param;
-                } else {
-                    //multiple header values are an error, so get a bad request
-                    ((HttpServletResponse) response).sendError(HttpServletResponse.SC_BAD_REQUEST);
-                    return;
-                }
+        //read from the query string, getParameterValues would parse a form body too
+        List<String> params;
+        try {
+            params = queryValues(req.getQueryString(), jwtParamName);
+        } catch (IllegalArgumentException e) {
+            //a malformed %-escape in the query string is the client's mistake
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        for(String param : params) {
+            if(jwtParam == null) {
+                jwtParam = param;
+            } else {
+                //multiple header values are an error, so get a bad request
+                ((HttpServletResponse) response).sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
             }
         }
         
-        SignedJWT jwt = new SignedJWT(signingCert, jwtHeader, jwtParam);
-        
-        if(jwt.getState().equals(AuthenticationState.ACCESS_DENIED)) {
-            String ctxPath = req.getContextPath();
-            boolean protectedUrl = ctxPath.contains("account");
-            
-            //JWT is not valid, however we let GET requests with no parameters through to protected urls.
-            if(protectedUrl && !("GET".equals(req.getMethod()) && (req.getQueryString()==null || req.getQueryString().isEmpty()))){
+        //the header wins over the parameter, only the token that was used is verified and cached
+        String token = (jwtHeader != null && !jwtHeader.isEmpty()) ? jwtHeader : jwtParam;
+        ClaimsRequest claimsRequest = new ClaimsRequest(req, token);
+
+        String ctxPath = req.getContextPath();
+        boolean protectedUrl = ctxPath.contains("account");
+
+        //JWT is not valid, however we let GET requests with no parameters through to protected urls.
+        if(protectedUrl && !("GET".equals(req.getMethod()) && (req.getQueryString()==null || req.getQueryString().isEmpty()))){
+            if(claimsRequest.verified() == null) {
                 ((HttpServletResponse) response).sendError(HttpServletResponse.SC_FORBIDDEN);
                 return;
             }
-        } else {
-            playerId = jwt.getClaim("sub");
-            story = jwt.getClaim("story");
-            playerMode = jwt.getClaim("playerMode");
-            audience = jwt.getClaim("aud");
         }
-    
-        request.setAttribute("player.id", playerId);
-        if(story!=null) request.setAttribute("player.story", story);
-        request.setAttribute("player.playerMode", playerMode);
-        request.setAttribute("player.audience", audience);
-        chain.doFilter(request, response);
+
+        //otherwise the token is only verified if a resource reads one of the player attributes
+        chain.doFilter(claimsRequest, response);
+    }
+
+    private Verified verify(String token) {
+        if(token == null || token.isEmpty()) {
+            return null;
+        }
+        //read before the key is chosen, so a key reload meanwhile keeps the result out of the cache
+        long generation = verifiedTokens.generation();
+        Verified verified = verifiedTokens.get(token);
+        Certificate signingCert;
+        if(verified == null && (signingCert = signingKeys.forToken(token)) != null) {
+            SignedJWT jwt = new SignedJWT(signingCert, token);
+            if(jwt.getState().equals(AuthenticationState.PASSED)) {
+                verified = verifiedTokens.put(token, jwt, generation);
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a name or value has a malformed %-escape
+     */
+    private static List<String> queryValues(String query, String name) {
+        List<String> values = new ArrayList<>();
+        if(query == null || query.isEmpty()) {
+            return values;
+        }
+        for(String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            if(key.equals(name)) {
+                values.add(eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * The request as passed on, the player.* attributes are filled in from the token
+     * the first time one of them is read.
+     */
+    private class ClaimsRequest extends HttpServletRequestWrapper {
+
+        private final String token;
+        private boolean resolved = false;
+        private Verified verified;
+
+        ClaimsRequest(HttpServletRequest request, String token) {
+            super(request);
+            this.token = token;
+        }
+
+        Verified verified() {
+            if(!resolved) {
+                resolved = true;
+                verified = verify(token);
+                if(verified != null) {
+                    super.setAttribute("player.id", verified.playerId);
+                    if(verified.story!=null) super.setAttribute("player.story", verified.story);
+                    super.setAttribute("player.playerMode", verified.playerMode);
+                    super.setAttribute("player.audience", verified.audience);
+                }
+            }
+            return verified;
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            if(name.startsWith(attributePrefix)) {
+                verified();
+            }
+            return super.getAttribute(name);
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            verified();
+            return super.getAttributeNames();
+        }
     }
 
     @Override
@@ -0,0 +1,367 @@
+package org.gameontext.player.control;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.CouchChangesFeed;
+import org.gameontext.player.CouchInjector;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.Log;
+
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * Periodic snapshots of the in-process player state (the room index and the
+ * player cache), so a restarted instance starts warm.
+ *
+ * Each snapshot is tagged with the changes feed sequence it is current to. At
+ * startup the snapshot is loaded, and the feed replays the changes made since
+ * that sequence before going live, instead of the room index scanning every
+ * player document. Replaying a change already in the snapshot is harmless, as
+ * the index compares revisions. Cached records are held back until the replay is
+ * done, and those the replay changed are dropped, so requests meanwhile can't be
+ * served a record from before the snapshot's sequence.
+ *
+ * A snapshot older than PLAYER_SNAPSHOT_MAX_AGE is ignored. If the changes since
+ * the snapshot can't be read, the restored state is dropped and rebuilt as usual.
+ *
+ * The file is binary: a header (magic, version, database, sequence, time written),
+ * then the room index entries, then the cached player records. Cached records
+ * include api keys, so the file is only readable by its owner.
+ */
+@ApplicationScoped
+public class PlayerSnapshots {
+
+    private static final int MAGIC = 0x474f5053; // GOPS
+    private static final int VERSION = 1;
+
+    @Inject
+    protected CouchChangesFeed feed;
+
+    @Inject
+    protected RoomOccupancyIndex index;
+
+    @Inject
+    protected PlayerCache cache;
+
+    @ConfigProperty( name = "PLAYER_SNAPSHOT", defaultValue = "false")
+    protected boolean enabled;
+
+    @ConfigProperty( name = "PLAYER_SNAPSHOT_FILE", defaultValue = "player-state.snapshot")
+    protected String fileName;
+
+    @ConfigProperty( name = "PLAYER_SNAPSHOT_INTERVAL", defaultValue = "60")
+    protected long intervalSeconds;
+
+    @ConfigProperty( name = "PLAYER_SNAPSHOT_MAX_AGE", defaultValue = "3600")
+    protected long maxAgeSeconds;
+
+    private static class Occupant {
+        final String playerId;
+        final String room;
+        final long revision;
+
+        Occupant(String playerId, String room, long revision) {
+            this.playerId = playerId;
+            this.room = room;
+            this.revision = revision;
+        }
+    }
+
+    private static class Restored {
+        final PlayerDbRecord record;
+        final long age;
+
+        Restored(PlayerDbRecord record, long age) {
+            this.record = record;
+            this.age = age;
+        }
+    }
+
+    /** cached records from the snapshot, waiting for the feed to catch up */
+    private final Map<String, Restored> held = new ConcurrentHashMap<>();
+    private volatile long restoredAt;
+
+    private volatile boolean running = false;
+    private Thread writer;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong restored = new AtomicLong();
+
+    void start(@Observes StartupEvent event) {
+        if ( !isEnabled() ) {
+            return;
+        }
+        running = true;
+        writer = new Thread(this::writeLoop, "player-snapshot");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    void stop(@Observes ShutdownEvent event) {
+        if ( !running ) {
+            return;
+        }
+        running = false;
+        writer.interrupt();
+        write();
+    }
+
+    public boolean isEnabled() {
+        // without the feed there's no way to catch up from the snapshot
+        return enabled && feed.isEnabled();
+    }
+
+    /**
+     * Load the last snapshot into the room index, and hold its cached records until
+     * caughtUp, called by the changes feed before it connects.
+     * @return the sequence to replay changes from, or null if nothing was restored
+     */
+    public String restore() {
+        if ( !isEnabled() ) {
+            return null;
+        }
+        Path file = file();
+        if ( !Files.exists(file) ) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+                Log.log(Level.WARNING, this, "Ignoring snapshot {0}, unknown format", file);
+                return null;
+            }
+            String dbName = readString(in);
+            String seq = readString(in);
+            long age = System.currentTimeMillis() - in.readLong();
+            if ( !CouchInjector.DB_NAME.equals(dbName) || seq == null ) {
+                Log.log(Level.WARNING, this, "Ignoring snapshot {0}, it is for another database", file);
+                return null;
+            }
+            if ( age > TimeUnit.SECONDS.toMillis(maxAgeSeconds) ) {
+                Log.log(Level.INFO, this, "Ignoring snapshot {0}, it is {1}s old", file, TimeUnit.MILLISECONDS.toSeconds(age));
+                return null;
+            }
+
+            // read everything before applying any of it, so a torn file restores nothing
+            int occupants = in.readInt();
+            List<Occupant> rooms = new ArrayList<>(occupants);
+            for (int i = 0; i < occupants; i++) {
+                rooms.add(new Occupant(readString(in), readString(in), in.readLong()));
+            }
+            int records = in.readInt();
+            List<PlayerDbRecord> players = new ArrayList<>(records);
+            List<Long> ages = new ArrayList<>(records);
+            for (int i = 0; i < records; i++) {
+                players.add(readRecord(in));
+                ages.add(in.readLong() + TimeUnit.MILLISECONDS.toNanos(age));
+            }
+
+            for (Occupant o : rooms) {
+                index.restore(o.playerId, o.room, o.revision);
+            }
+            restoredAt = System.nanoTime();
+            for (int i = 0; i < records; i++) {
+                held.put(players.get(i).getId(), new Restored(players.get(i), ages.get(i)));
+            }
+            restored.set(occupants);
+            Log.log(Level.INFO, this, "Restored {0} room entries from {2}, and {1} cached players once changes since {3} are replayed",
+                    occupants, records, file, seq);
+            return seq;
+        } catch (IOException e) {
+            // nothing is applied until the whole file has been read
+            Log.log(Level.WARNING, this, "Unable to read snapshot {0}, rebuilding player state", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Put the snapshot's cached records that the replay didn't change in the cache,
+     * called by the changes feed once it has delivered every change since the snapshot.
+     */
+    public void caughtUp() {
+        long elapsed = System.nanoTime() - restoredAt;
+        int count = held.size();
+        held.values().forEach(r -> cache.restore(r.record, r.age + elapsed));
+        held.clear();
+        Log.log(Level.FINER, this, "Cached {0} players from the snapshot", count);
+    }
+
+    /**
+     * Drop restored state that can't be brought up to date, called by the changes
+     * feed if it can't replay from the snapshot sequence.
+     */
+    public void discard() {
+        held.clear();
+        index.reset();
+        cache.clear();
+        restored.set(0);
+    }
+
+    void onChange(@Observes DocumentChange change) {
+        if ( held.isEmpty() ) {
+            return;
+        }
+        // changed since the snapshot, it will be read again when it is next wanted
+        String id = change.getId();
+        held.remove(PlayerLocationRecord.isLocationId(id) ? PlayerLocationRecord.playerIdOf(id) : id);
+    }
+
+    private void writeLoop() {
+        while ( running ) {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(intervalSeconds));
+                write();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private synchronized void write() {
+        // only state that is complete, and current to a known sequence, is worth keeping
+        if ( !feed.isFollowing() || (index.isActive() && !index.isReady()) ) {
+            return;
+        }
+        // taken before the state is read, so the state holds at least every change up to it
+        String seq = feed.getSince();
+
+        Path file = file();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            Files.deleteIfExists(tmp);
+            try {
+                Files.createFile(tmp, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            } catch (UnsupportedOperationException e) {
+                Files.createFile(tmp);
+            }
+
+            List<Occupant> rooms = new ArrayList<>();
+            index.snapshot((playerId, room, revision) -> rooms.add(new Occupant(playerId, room, revision)));
+            List<PlayerDbRecord> players = new ArrayList<>();
+            List<Long> ages = new ArrayList<>();
+            cache.snapshot((p, age) -> {
+                players.add(p);
+                ages.add(age);
+            });
+
+            try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, CouchInjector.DB_NAME);
+                writeString(out, seq);
+                out.writeLong(System.currentTimeMillis());
+
+                out.writeInt(rooms.size());
+                for (Occupant o : rooms) {
+                    writeString(out, o.playerId);
+                    writeString(out, o.room);
+                    out.writeLong(o.revision);
+                }
+
+                out.writeInt(players.size());
+                for (int i = 0; i < players.size(); i++) {
+                    writeRecord(out, players.get(i));
+                    out.writeLong(ages.get(i));
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            written.incrementAndGet();
+            Log.log(Level.FINER, this, "Wrote snapshot of {0} room entries and {1} cached players at {2}", rooms.size(), players.size(), seq);
+        } catch (IOException e) {
+            Log.log(Level.WARNING, this, "Unable to write snapshot {0}", file, e);
+        }
+    }
+
+    private Path file() {
+        return Paths.get(fileName).toAbsolutePath();
+    }
+
+    private static void writeRecord(DataOutputStream out, PlayerDbRecord p) throws IOException {
+        writeString(out, p.getId());
+        writeString(out, p.getRev());
+        writeString(out, p.getName());
+        writeString(out, p.getFavoriteColor());
+        writeString(out, p.getStory());
+        writeString(out, p.getPlayerMode());
+        writeString(out, p.getApiKey());
+        writeString(out, p.getLocation());
+    }
+
+    private static PlayerDbRecord readRecord(DataInputStream in) throws IOException {
+        PlayerDbRecord p = new PlayerDbRecord();
+        p.setId(readString(in));
+        p.setRev(readString(in));
+        p.setName(readString(in));
+        p.setFavoriteColor(readString(in));
+        p.setStory(readString(in));
+        p.setPlayerMode(readString(in));
+        p.setApiKey(readString(in));
+        p.setLocation(readString(in));
+        return p;
+    }
+
+    /** length prefixed utf-8, -1 for null (writeUTF can't hold null, or more than 64k) */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if ( s == null ) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if ( length < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Gauge(name = "playerSnapshot_written", unit = MetricUnits.NONE,
+        tags = "label=playerSnapshots")
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    @Gauge(name = "playerSnapshot_restored", unit = MetricUnits.NONE,
+        tags = "label=playerSnapshots")
+    public long getRestoredCount() {
+        return restored.get();
+    }
+}
@@ -0,0 +1,96 @@
+package org.gameontext.player.control;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+
+import org.gameontext.player.entity.PlayerDbRecord;
+
+/**
+ * Where player records are kept.
+ *
+ * Whichever engine is in use, a missing player fails with ektorp's DocumentNotFoundException,
+ * and a write from a stale revision (or a create for an id in use) fails with ektorp's
+ * UpdateConflictException, so callers and ErrorResponseMapper see the same errors.
+ * Records returned are the caller's to modify, and carry the player's current location.
+ * Revisions follow couchdb's N-hash form.
+ */
+public interface PlayerStore {
+
+    /**
+     * @return the player, failing with DocumentNotFoundException if there is no such player.
+     */
+    CompletionStage<PlayerDbRecord> get(String id);
+
+    /**
+     * @return the players found, ids with no player are left out.
+     */
+    List<PlayerDbRecord> getAll(Collection<String> ids);
+
+    /**
+     * Store a new player, on success the record carries its revision.
+     */
+    void create(PlayerDbRecord player);
+
+    /**
+     * Replace the player, the record must carry the revision being replaced.
+     * On success the record carries its new revision.
+     */
+    CompletionStage<PlayerDbRecord> update(PlayerDbRecord player);
+
+    /**
+     * Remove the player, failing with DocumentNotFoundException if there is no such player.
+     */
+    void delete(String id);
+
+    List<PlayerDbRecord> listAll();
+
+    /**
+     * @return the ids of the players in the room, players with no location are in the first room.
+     */
+    List<String> listByLocation(String siteId);
+
+    boolean isHealthy();
+
+    /**
+     * @return the name reported by the readiness check
+     */
+    String getName();
+
+    /**
+     * @return true if records are kept in couchdb, and so couchdb specific
+     *   features (views, the changes feed, bulk requests) can be used.
+     */
+    default boolean isCouchDb() {
+        return false;
+    }
+
+    /**
+     * @return true if other instances may write the same records, so in-process copies
+     *   of them can go stale (unless the changes feed reports the writes, see PlayerCache).
+     */
+    default boolean isShared() {
+        return isCouchDb();
+    }
+
+    /**
+     * Wait for a stage from this store, rethrowing the failure as it was raised.
+     * The wait ends if the thread is interrupted (as fault tolerance does when a
+     * @Timeout expires), failing with a CompletionException.
+     */
+    static <T> T await(CompletionStage<T> stage) {
+        try {
+            return stage.toCompletableFuture().get();
+        } catch (ExecutionException e) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.gameontext.player.control;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.entity.PlayerCodecs;
+import org.gameontext.player.utils.BoundedCache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Encoded json bodies of player responses, so a popular player isn't turned into
+ * response objects and serialized again for every read.
+ *
+ * There is one entry per player and variant (full, public, location), holding the
+ * entity tag it was encoded for. A body is only served for the tag it was encoded
+ * for, and the tag covers the revision (and the location, where the revision
+ * doesn't), so a changed player is simply encoded again.
+ *
+ * Holds at most RESPONSE_CACHE_BYTES of bodies, least recently used go first.
+ * With RESPONSE_CACHE_OFF_HEAP, bodies are kept in direct buffers outside the heap,
+ * and copied to the response as it is written.
+ */
+@ApplicationScoped
+public class ResponseBytesCache {
+
+    @ConfigProperty( name = "RESPONSE_CACHE_BYTES", defaultValue = "16777216")
+    protected long maxBytes;
+
+    @ConfigProperty( name = "RESPONSE_CACHE_OFF_HEAP", defaultValue = "false")
+    protected boolean offHeap;
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new PlayerCodecs());
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private BoundedCache<String, Encoded> entries;
+
+    private static class Encoded {
+        final String tag;
+        final ByteBuffer body;
+
+        Encoded(String tag, ByteBuffer body) {
+            this.tag = tag;
+            this.body = body;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        entries = new BoundedCache<>(maxBytes, e -> e.body.capacity());
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return the json body for the player's response in this variant and entity tag,
+     *   encoded from 'view' if it isn't held, as a byte[] or (off heap) a StreamingOutput
+     */
+    public Object get(String id, String variant, String tag, Supplier<Object> view) {
+        return entity(encoded(id, variant, tag, view));
+    }
+
+    /**
+     * @return the json body for the player's response in this variant and entity tag,
+     *   encoded from 'view' if it isn't held. The buffer is the caller's to read, its
+     *   content must not be changed.
+     */
+    public ByteBuffer encoded(String id, String variant, String tag, Supplier<Object> view) {
+        String key = id + '\u0000' + variant;
+        Encoded held = entries.get(key);
+        if ( held != null && held.tag.equals(tag) ) {
+            hits.incrementAndGet();
+            return held.body.duplicate();
+        }
+        misses.incrementAndGet();
+
+        byte[] encoded;
+        try {
+            encoded = mapper.writeValueAsBytes(view.get());
+        } catch (JsonProcessingException e) {
+            // not expected for these entities, so don't hide it
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer body = ByteBuffer.wrap(encoded);
+        if ( offHeap ) {
+            body = ByteBuffer.allocateDirect(encoded.length).put(encoded);
+            body.flip();
+        }
+        if ( encoded.length <= maxBytes ) {
+            entries.put(key, new Encoded(tag, body));
+        }
+        return body.duplicate();
+    }
+
+    private static Object entity(ByteBuffer body) {
+        if ( body.hasArray() ) {
+            return body.array();
+        }
+        return (StreamingOutput) output -> Channels.newChannel(output).write(body.duplicate());
+    }
+
+    @Gauge(name = "responseCache_hits", unit = MetricUnits.NONE,
+        tags = "label=responseBytesCache")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Gauge(name = "responseCache_misses", unit = MetricUnits.NONE,
+        tags = "label=responseBytesCache")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Gauge(name = "responseCache_hitRate", unit = MetricUnits.PERCENT,
+        tags = "label=responseBytesCache")
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : 100.0 * h / total;
+    }
+
+    @Gauge(name = "responseCache_bytes", unit = MetricUnits.BYTES,
+        tags = "label=responseBytesCache")
+    public long getBytes() {
+        return entries.getWeight();
+    }
+
+    @Gauge(name = "responseCache_size", unit = MetricUnits.NONE,
+        tags = "label=responseBytesCache")
+    public long getSize() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,352 @@
+package org.gameontext.player.control;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.ektorp.CouchDbConnector;
+import org.ektorp.ViewQuery;
+import org.ektorp.changes.DocumentChange;
+import org.gameontext.player.CouchChangesFeed;
+import org.gameontext.player.PlayerApplication;
+import org.gameontext.player.PlayerRecords;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.entity.PlayerLocationRecord;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * In-memory index of which players are in which room, so a room lookup
+ * costs O(players in room) rather than a scan of every player document.
+ *
+ * Players without a stored location are indexed under PlayerApplication.FIRST_ROOM.
+ * Each entry remembers the document revision it came from, so a late update
+ * can't replace a newer one. With the split location layout, a location document
+ * always outranks the location left in the player record. The index is seeded from the players view once the changes feed is connected,
+ * (or from a snapshot, see PlayerSnapshots), and is kept current from local location updates and the changes feed.
+ * Until seeding completes, isReady() returns false and callers should use the view.
+ */
+@ApplicationScoped
+public class RoomOccupancyIndex {
+
+    private static final long RETRY_DELAY_MS = 5000;
+
+    /** added to location document revisions, so they rank above player record revisions */
+    private static final long LOCATION_RECORD_RANK = 1L << 40;
+
+    @Inject
+    protected CouchDbConnector db;
+
+    @Inject
+    protected CouchChangesFeed feed;
+
+    @Inject
+    protected PlayerRecords records;
+
+    @Inject
+    protected LocationWriteBehind writeBehind;
+
+    @ConfigProperty( name = "ROOM_INDEX", defaultValue = "true")
+    protected boolean enabled;
+
+    /** player id -> room */
+    private final ConcurrentMap<String, Occupant> locations = new ConcurrentHashMap<>();
+
+    /** room -> player ids */
+    private final ConcurrentMap<String, Set<String>> rooms = new ConcurrentHashMap<>();
+
+    /** players changed while seeding, the seed data for these is older than what we hold */
+    private volatile Set<String> touched = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean ready = false;
+
+    /** true if seeded from a snapshot, and so only the changes feed needs to be replayed */
+    private volatile boolean restored = false;
+
+    private static class Occupant {
+        final String room;
+        final long revision;
+
+        Occupant(String room, long revision) {
+            this.room = room;
+            this.revision = revision;
+        }
+    }
+
+    /** receives a player's room, and the revision rank it came from */
+    interface OccupantConsumer {
+        void accept(String playerId, String room, long revision);
+    }
+
+    void start(@Observes StartupEvent event) {
+        if ( !isActive() ) {
+            return;
+        }
+        Thread builder = new Thread(this::seed, "room-index-seed");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    boolean isActive() {
+        // without the feed, we can't see moves made by other replicas
+        return enabled && feed.isEnabled();
+    }
+
+    /**
+     * @return the ids of the players currently in the room
+     */
+    public List<String> getPlayersIn(String siteId) {
+        Set<String> players = rooms.get(siteId);
+        return players == null ? Collections.emptyList() : new ArrayList<>(players);
+    }
+
+    /**
+     * @return a map of every known player id to their room
+     */
+    public Map<String, String> getLocations() {
+        Map<String, String> result = new HashMap<>();
+        locations.forEach((id, occupant) -> result.put(id, occupant.room));
+        return result;
+    }
+
+    /**
+     * Record a player's new location, a null location means the first room.
+     * @param rev the document revision holding the new location
+     */
+    public void move(String playerId, String location, String rev) {
+        if ( !isActive() ) {
+            return;
+        }
+        Set<String> seeding = touched;
+        if ( seeding != null ) {
+            seeding.add(playerId);
+        }
+        place(playerId, location, PlayerCache.revision(rev));
+    }
+
+    /**
+     * Record a player's new location, from either layout.
+     */
+    public void move(PlayerLocationRecord l) {
+        if ( !l.isSeparate() ) {
+            move(l.getPlayerId(), l.getLocation(), l.getRev());
+            return;
+        }
+        if ( !isActive() ) {
+            return;
+        }
+        Set<String> seeding = touched;
+        if ( seeding != null ) {
+            seeding.add(l.getPlayerId());
+        }
+        place(l.getPlayerId(), l.getLocation(), LOCATION_RECORD_RANK + PlayerCache.revision(l.getRev()));
+    }
+
+    /**
+     * Record a move that hasn't been written yet (see LocationWriteBehind), it keeps the
+     * revision of the player's last written location, so the write replaces it when it arrives.
+     */
+    public void movePending(String playerId, String location) {
+        if ( !isActive() ) {
+            return;
+        }
+        Set<String> seeding = touched;
+        if ( seeding != null ) {
+            seeding.add(playerId);
+        }
+        locations.compute(playerId, (id, previous) -> join(id, previous, location, previous == null ? 0 : previous.revision));
+    }
+
+    public void remove(String playerId) {
+        if ( !isActive() ) {
+            return;
+        }
+        Set<String> seeding = touched;
+        if ( seeding != null ) {
+            seeding.add(playerId);
+        }
+        locations.computeIfPresent(playerId, (id, previous) -> {
+            leave(previous.room, id);
+            return null;
+        });
+    }
+
+    /**
+     * Hand every entry to the consumer, for PlayerSnapshots.
+     */
+    void snapshot(OccupantConsumer consumer) {
+        locations.forEach((id, occupant) -> consumer.accept(id, occupant.room, occupant.revision));
+    }
+
+    /**
+     * Seed an entry from a snapshot, called before the changes feed connects.
+     * Like seeding from the view, players moved meanwhile keep their newer entry.
+     */
+    void restore(String playerId, String room, long revision) {
+        Set<String> seeding = touched;
+        if ( !isActive() || seeding == null ) {
+            return;
+        }
+        restored = true;
+        seed(seeding, playerId, room, revision);
+    }
+
+    /**
+     * Forget everything, and seed from the view once the feed connects.
+     * Moves still being written behind are kept.
+     */
+    void reset() {
+        if ( !isActive() ) {
+            return;
+        }
+        restored = false;
+        locations.clear();
+        rooms.clear();
+        writeBehind.getPendingLocations().forEach(this::movePending);
+    }
+
+    void onChange(@Observes DocumentChange change) {
+        if ( !isActive() || change.getId().startsWith("_design/") ) {
+            return;
+        }
+        boolean separate = PlayerLocationRecord.isLocationId(change.getId());
+        if ( !change.isDeleted() && writeBehind.isPending(PlayerLocationRecord.playerIdOf(change.getId())) ) {
+            // we hold a newer location than this change
+            return;
+        }
+        if ( change.isDeleted() ) {
+            if ( !separate ) {
+                remove(change.getId());
+            }
+            return;
+        }
+        JsonNode doc = change.getDocAsNode();
+        if ( doc != null ) {
+            JsonNode location = doc.path("location");
+            PlayerLocationRecord l = new PlayerLocationRecord();
+            l.setId(change.getId());
+            l.setRev(change.getRevision());
+            l.setLocation(location.isTextual() ? location.asText() : null);
+            move(l);
+        }
+    }
+
+    private void seed() {
+        while ( !ready ) {
+            try {
+                // wait for the feed, so no write can fall between the view read and the first change
+                while ( !feed.isFollowing() ) {
+                    Thread.sleep(100);
+                }
+                if ( restored ) {
+                    // the feed has replayed everything since the snapshot
+                    touched = null;
+                    ready = true;
+                    Log.log(Level.FINER, this, "Room index restored with {0} players", locations.size());
+                    return;
+                }
+
+                ViewQuery all = new ViewQuery().designDocId("_design/players").viewName("all").cacheOk(true).includeDocs(true);
+                List<PlayerDbRecord> results = db.queryView(all, PlayerDbRecord.class);
+                results.removeIf(p -> PlayerLocationRecord.isLocationId(p.getId()));
+                Set<String> seeding = touched;
+                for (PlayerDbRecord p : results) {
+                    seed(seeding, p.getId(), p.getLocation(), PlayerCache.revision(p.getRev()));
+                }
+                if ( records.isSplitLocations() ) {
+                    ViewQuery moved = new ViewQuery().allDocs().includeDocs(true)
+                            .startKey(PlayerLocationRecord.ID_PREFIX).endKey(PlayerLocationRecord.ID_PREFIX + "\ufff0");
+                    for (PlayerLocationRecord l : db.queryView(moved, PlayerLocationRecord.class)) {
+                        seed(seeding, l.getPlayerId(), l.getLocation(), LOCATION_RECORD_RANK + PlayerCache.revision(l.getRev()));
+                    }
+                }
+
+                touched = null;
+                ready = true;
+                Log.log(Level.FINER, this, "Room index seeded with {0} players", results.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                Log.log(Level.WARNING, this, "Unable to seed room index, retrying", e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void seed(Set<String> seeding, String playerId, String location, long revision) {
+        locations.compute(playerId, (id, previous) -> {
+            if ( seeding.contains(id) ) {
+                return previous;
+            }
+            return join(id, previous, location, revision);
+        });
+    }
+
+    private void place(String playerId, String location, long revision) {
+        locations.compute(playerId, (id, previous) -> join(id, previous, location, revision));
+    }
+
+    /** must be called from within locations.compute for the player */
+    private Occupant join(String playerId, Occupant previous, String location, long revision) {
+        if ( previous != null && previous.revision > revision ) {
+            return previous;
+        }
+        String room = location == null ? PlayerApplication.FIRST_ROOM : location;
+        if ( previous != null && !previous.room.equals(room) ) {
+            leave(previous.room, playerId);
+        }
+        rooms.compute(room, (r, players) -> {
+            if ( players == null ) {
+                players = ConcurrentHashMap.newKeySet();
+            }
+            players.add(playerId);
+            return players;
+        });
+        return new Occupant(room, revision);
+    }
+
+    private void leave(String room, String playerId) {
+        rooms.computeIfPresent(room, (r, players) -> {
+            players.remove(playerId);
+            return players.isEmpty() ? null : players;
+        });
+    }
+
+    @Gauge(name = "roomIndex_players", unit = MetricUnits.NONE,
+        tags = "label=roomOccupancyIndex")
+    public long getPlayerCount() {
+        return locations.size();
+    }
+
+    @Gauge(name = "roomIndex_rooms", unit = MetricUnits.NONE,
+        tags = "label=roomOccupancyIndex")
+    public long getRoomCount() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,56 @@
+package org.gameontext.player.control;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of player ids onto a number of shards.
+ *
+ * Each shard is placed on the ring at VIRTUAL_NODES points, and a player belongs to
+ * the shard at the first point after the hash of their id. Growing from N to M shards
+ * only moves the players whose point now falls to one of the new shards, about
+ * (M-N)/M of them, and none move between the shards that already existed.
+ * Hashes are md5 based, so every instance (and every jvm) agrees on the placement.
+ */
+public class ShardRing {
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+    private final int shards;
+
+    public ShardRing(int shards) {
+        this.shards = shards;
+        for (int shard = 0; shard < shards; shard++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring.put(hash("shard-" + shard + "#" + v), shard);
+            }
+        }
+    }
+
+    public int size() {
+        return shards;
+    }
+
+    /**
+     * @return the shard (0 to size()-1) the player belongs to
+     */
+    public int shardFor(String playerId) {
+        Map.Entry<Long, Integer> e = ring.ceilingEntry(hash(playerId));
+        return (e == null ? ring.firstEntry() : e).getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            // every jvm is required to provide md5
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package org.gameontext.player.control;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import org.ektorp.CouchDbConnector;
+import org.ektorp.CouchDbInstance;
+import org.ektorp.DocumentNotFoundException;
+import org.ektorp.DocumentOperationResult;
+import org.ektorp.UpdateConflictException;
+import org.ektorp.ViewQuery;
+import org.ektorp.ViewResult;
+import org.gameontext.player.CouchInjector;
+import org.gameontext.player.PlayerViews;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Player records spread over several couchdb databases (playerdb_0 to playerdb_N-1),
+ * so no one database's views and compaction have to cover every player.
+ *
+ * A player's shard is chosen by consistent hashing of their id (see ShardRing).
+ * Reads and writes of one player go straight to their shard, lists and room queries
+ * are sent to every shard in parallel and the results merged.
+ *
+ * Resharding is online: start every instance with the new PLAYER_SHARDS and the old
+ * count as PLAYER_SHARDS_PREVIOUS. Players are then looked for in their new shard,
+ * then their old one, and a player is moved to their new shard (keeping their _rev)
+ * before they're next written. With PLAYER_SHARDS_MIGRATE=true, a background pass
+ * also moves every player that hasn't been written yet. Once it reports completion,
+ * drop PLAYER_SHARDS_PREVIOUS.
+ *
+ * Like the memory and file stores, this is a plain record store: the couchdb specific
+ * features of the single database (changes feed, room index, split locations,
+ * location write-behind) are not used with it.
+ */
+public class ShardedPlayerStore implements PlayerStore {
+
+    private static final int MIGRATION_BATCH = 500;
+    private static final String DESIGN_PREFIX = "_design/";
+
+    private final CouchDbInstance instance;
+    private final ShardRing ring;
+    private final ShardRing previous;
+    private final boolean migrate;
+
+    /** shard number -> database, covers the shards of both rings while resharding */
+    private final List<CouchDbConnector> shards = new ArrayList<>();
+    private final ExecutorService scatter;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final AtomicLong relocated = new AtomicLong();
+
+    public ShardedPlayerStore(CouchDbInstance instance, int shards, int previousShards, boolean migrate) {
+        this.instance = instance;
+        this.ring = new ShardRing(shards);
+        this.previous = previousShards > 0 && previousShards != shards ? new ShardRing(previousShards) : null;
+        this.migrate = migrate;
+
+        int count = Math.max(shards, previous == null ? 0 : previous.size());
+        AtomicInteger threads = new AtomicInteger();
+        this.scatter = Executors.newFixedThreadPool(count, r -> {
+            Thread t = new Thread(r, CouchInjector.DB_NAME + "-shards-" + threads.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static String shardName(int shard) {
+        return CouchInjector.DB_NAME + "_" + shard;
+    }
+
+    /**
+     * Connect to (creating if needed) every shard, and install the views used for room queries.
+     */
+    public void open() {
+        int count = Math.max(ring.size(), previous == null ? 0 : previous.size());
+        for (int shard = 0; shard < count; shard++) {
+            CouchDbConnector db = instance.createConnector(shardName(shard), true);
+            PlayerViews.installIn(db);
+            shards.add(db);
+        }
+        Log.log(Level.INFO, this, "Opened {0} player shards{1}", ring.size(),
+                previous == null ? "" : ", resharding from " + previous.size());
+
+        if ( previous != null && migrate ) {
+            Thread migration = new Thread(this::migrate, CouchInjector.DB_NAME + "-reshard");
+            migration.setDaemon(true);
+            migration.start();
+        }
+    }
+
+    public void close() {
+        scatter.shutdownNow();
+    }
+
+    @Override
+    public boolean isShared() {
+        // every instance writes to the shards, and there is no changes feed to tell us
+        return true;
+    }
+
+    @Override
+    public CompletionStage<PlayerDbRecord> get(String id) {
+        PlayerDbRecord p = find(id);
+        if ( p == null ) {
+            return CompletableFuture.failedFuture(new DocumentNotFoundException(id));
+        }
+        return CompletableFuture.completedFuture(p);
+    }
+
+    @Override
+    public List<PlayerDbRecord> getAll(Collection<String> ids) {
+        Map<Integer, List<String>> byShard = new HashMap<>();
+        for (String id : ids) {
+            byShard.computeIfAbsent(ring.shardFor(id), s -> new ArrayList<>()).add(id);
+        }
+        List<PlayerDbRecord> found = gather(byShard.keySet(), shard -> fetch(shards.get(shard), byShard.get(shard), PlayerDbRecord.class));
+
+        if ( previous != null ) {
+            // players not moved to their new shard yet
+            Set<String> missing = new LinkedHashSet<>(ids);
+            found.forEach(p -> missing.remove(p.getId()));
+            Map<Integer, List<String>> byOldShard = new HashMap<>();
+            for (String id : missing) {
+                if ( previous.shardFor(id) != ring.shardFor(id) ) {
+                    byOldShard.computeIfAbsent(previous.shardFor(id), s -> new ArrayList<>()).add(id);
+                }
+            }
+            found.addAll(gather(byOldShard.keySet(), shard -> fetch(shards.get(shard), byOldShard.get(shard), PlayerDbRecord.class)));
+        }
+        return found;
+    }
+
+    @Override
+    public void create(PlayerDbRecord player) {
+        if ( previous != null && findIn(previous.shardFor(player.getId()), player.getId()) != null ) {
+            throw new UpdateConflictException(player.getId(), null);
+        }
+        shardOf(player.getId()).create(player); // throws UpdateConflictException if the id is in use
+    }
+
+    @Override
+    public CompletionStage<PlayerDbRecord> update(PlayerDbRecord player) {
+        try {
+            relocate(player.getId());
+            shardOf(player.getId()).update(player); // throws UpdateConflictException
+            return CompletableFuture.completedFuture(player);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void delete(String id) {
+        int shard = ring.shardFor(id);
+        PlayerDbRecord p = findIn(shard, id);
+        if ( p == null && previous != null ) {
+            shard = previous.shardFor(id);
+            p = findIn(shard, id);
+        }
+        if ( p == null ) {
+            throw new DocumentNotFoundException(id);
+        }
+        shards.get(shard).delete(p);
+    }
+
+    @Override
+    public List<PlayerDbRecord> listAll() {
+        ViewQuery all = new ViewQuery().allDocs().includeDocs(true);
+        List<PlayerDbRecord> players = gather(allShards(), shard -> {
+            List<PlayerDbRecord> docs = shards.get(shard).queryView(all, PlayerDbRecord.class);
+            docs.removeIf(p -> p.getId().startsWith(DESIGN_PREFIX));
+            return docs;
+        });
+        return previous == null ? players : distinct(players, PlayerDbRecord::getId);
+    }
+
+    @Override
+    public List<String> listByLocation(String siteId) {
+        ViewQuery q = new ViewQuery().designDocId(PlayerViews.DESIGN_DOC).viewName(PlayerViews.BY_LOCATION).key(siteId);
+        List<String> players = gather(allShards(), shard -> {
+            List<String> ids = new ArrayList<>();
+            for (ViewResult.Row row : shards.get(shard).queryView(q).getRows()) {
+                ids.add(row.getId());
+            }
+            return ids;
+        });
+        return previous == null ? players : distinct(players, id -> id);
+    }
+
+    @Override
+    public boolean isHealthy() {
+        for (int shard : allShards()) {
+            if ( !instance.checkIfDbExists(shardName(shard)) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return shardName(0) + ".." + shardName(ring.size() - 1);
+    }
+
+    private CouchDbConnector shardOf(String id) {
+        return shards.get(ring.shardFor(id));
+    }
+
+    private List<Integer> allShards() {
+        List<Integer> all = new ArrayList<>();
+        for (int shard = 0; shard < shards.size(); shard++) {
+            all.add(shard);
+        }
+        return all;
+    }
+
+    private PlayerDbRecord find(String id) {
+        PlayerDbRecord p = findIn(ring.shardFor(id), id);
+        if ( p == null && previous != null && previous.shardFor(id) != ring.shardFor(id) ) {
+            p = findIn(previous.shardFor(id), id);
+        }
+        return p;
+    }
+
+    private PlayerDbRecord findIn(int shard, String id) {
+        return shards.get(shard).find(PlayerDbRecord.class, id);
+    }
+
+    private static <T> List<T> fetch(CouchDbConnector db, Collection<String> ids, Class<T> type) {
+        ViewQuery q = new ViewQuery().allDocs().includeDocs(true).keys(ids);
+        q.setIgnoreNotFound(true);
+        List<T> docs = new ArrayList<>(db.queryView(q, type));
+        docs.removeIf(d -> d == null);
+        return docs;
+    }
+
+    /** run the query against each shard in parallel, and merge the results */
+    private <T> List<T> gather(Collection<Integer> from, Function<Integer, List<T>> query) {
+        List<CompletableFuture<List<T>>> parts = new ArrayList<>();
+        for (int shard : from) {
+            parts.add(CompletableFuture.supplyAsync(() -> query.apply(shard), scatter));
+        }
+        List<T> merged = new ArrayList<>();
+        for (CompletableFuture<List<T>> part : parts) {
+            merged.addAll(PlayerStore.await(part));
+        }
+        return merged;
+    }
+
+    /** while resharding a player can briefly be in both shards, keep the first seen */
+    private static <T> List<T> distinct(List<T> items, Function<T, String> id) {
+        Map<String, T> byId = new LinkedHashMap<>();
+        for (T item : items) {
+            byId.putIfAbsent(id.apply(item), item);
+        }
+        return new ArrayList<>(byId.values());
+    }
+
+    /**
+     * While resharding, move the player to their new shard if they are still in their old one.
+     */
+    private void relocate(String id) {
+        if ( previous == null || previous.shardFor(id) == ring.shardFor(id) ) {
+            return;
+        }
+        int from = previous.shardFor(id);
+        move(from, fetch(shards.get(from), List.of(id), ObjectNode.class));
+    }
+
+    /**
+     * Copy the documents from the shard to their owning shards with their revisions
+     * intact (new_edits=false, so a copy that is already there changes nothing),
+     * then delete them from the shard they were in.
+     */
+    private void move(int from, List<ObjectNode> docs) {
+        Map<Integer, ArrayNode> byShard = new HashMap<>();
+        for (ObjectNode doc : docs) {
+            int to = ring.shardFor(doc.path("_id").asText());
+            if ( to != from ) {
+                byShard.computeIfAbsent(to, s -> mapper.createArrayNode()).add(doc);
+            }
+        }
+        List<Object> deletes = new ArrayList<>();
+        byShard.forEach((to, batch) -> {
+            ObjectNode body = mapper.createObjectNode().put("new_edits", false);
+            body.set("docs", batch);
+            List<DocumentOperationResult> failed = shards.get(to).executeBulk(
+                    new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8)));
+            Set<String> notCopied = new LinkedHashSet<>();
+            failed.forEach(r -> notCopied.add(r.getId()));
+            for (int i = 0; i < batch.size(); i++) {
+                ObjectNode doc = (ObjectNode) batch.get(i);
+                if ( !notCopied.contains(doc.path("_id").asText()) ) {
+                    deletes.add(mapper.createObjectNode()
+                            .put("_id", doc.path("_id").asText())
+                            .put("_rev", doc.path("_rev").asText())
+                            .put("_deleted", true));
+                }
+            }
+        });
+        if ( !deletes.isEmpty() ) {
+            // a failure here is a copy deleted meanwhile by another mover, it's gone either way
+            shards.get(from).executeBulk(deletes);
+            relocated.addAndGet(deletes.size());
+        }
+    }
+
+    /** move every player that isn't in their new shard yet, one batch at a time */
+    private void migrate() {
+        try {
+            for (int shard : allShards()) {
+                String startKey = null;
+                while ( true ) {
+                    ViewQuery page = new ViewQuery().allDocs().includeDocs(true).limit(MIGRATION_BATCH + 1);
+                    if ( startKey != null ) {
+                        page.startKey(startKey);
+                    }
+                    List<ObjectNode> docs = new ArrayList<>(shards.get(shard).queryView(page, ObjectNode.class));
+                    startKey = docs.size() > MIGRATION_BATCH ? docs.remove(MIGRATION_BATCH).path("_id").asText() : null;
+                    docs.removeIf(doc -> doc.path("_id").asText().startsWith(DESIGN_PREFIX));
+                    move(shard, docs);
+                    if ( startKey == null ) {
+                        break;
+                    }
+                }
+            }
+            Log.log(Level.INFO, this, "Resharding to {0} shards complete, moved {1} players, PLAYER_SHARDS_PREVIOUS can now be removed",
+                    ring.size(), relocated.get());
+        } catch (Exception e) {
+            Log.log(Level.WARNING, this, "Resharding failed, unmoved players will move when they are next written", e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.gameontext.player.control;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.utils.Log;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.quarkus.runtime.StartupEvent;
+
+/**
+ * The certificates jwts are verified with (see PlayerFilter), by key id.
+ *
+ * Each '<kid>.pem' in JWT_PUBLIC_CERTS_DIR is the certificate for tokens whose header
+ * carries that kid. Tokens without a kid, or with one that isn't known, are verified
+ * with JWT_PUBLIC_CERT. Certificates are parsed once, at startup and whenever the
+ * directory changes, and published as an immutable map, so request threads never
+ * wait on (or parse) a key. A reload that can't parse every file keeps the keys it had,
+ * and a reload that succeeds forgets the verified tokens, as their keys may be gone.
+ */
+@ApplicationScoped
+public class SigningKeys {
+
+    private static final String PEM_SUFFIX = ".pem";
+    private static final long SETTLE_MS = 500;
+
+    @ConfigProperty( name = "JWT_PUBLIC_CERT")
+    protected Optional<String> defaultPem;
+
+    @ConfigProperty( name = "JWT_PUBLIC_CERTS_DIR")
+    protected Optional<String> certsDir;
+
+    @Inject
+    protected VerifiedTokenCache verifiedTokens;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicLong reloads = new AtomicLong();
+
+    private volatile Certificate defaultCert;
+    private volatile Map<String, Certificate> byKid = Collections.emptyMap();
+    private volatile WatchService watcher;
+
+    void start(@Observes StartupEvent event) {
+        if ( defaultPem.isPresent() && !defaultPem.get().equals("x") ) {
+            try {
+                defaultCert = parse(new ByteArrayInputStream(defaultPem.get().getBytes(StandardCharsets.UTF_8)));
+            } catch (CertificateException e) {
+                Log.log(Level.SEVERE, this, "Unable to parse JWT_PUBLIC_CERT, tokens without a known kid will be denied", e);
+            }
+        }
+        if ( certsDir.isPresent() ) {
+            Path dir = Paths.get(certsDir.get());
+            reload(dir);
+            try {
+                watcher = dir.getFileSystem().newWatchService();
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                Thread t = new Thread(() -> watch(dir), "jwt-keys");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                Log.log(Level.WARNING, this, "Unable to watch {0}, keys will not be reloaded", dir, e);
+            }
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        WatchService w = watcher;
+        if ( w != null ) {
+            try {
+                w.close();
+            } catch (IOException e) {
+                // stopping anyway
+            }
+        }
+    }
+
+    /**
+     * @return the certificate to verify the token with, or null if there is none
+     */
+    public Certificate forToken(String token) {
+        String kid = kidOf(token);
+        Certificate cert = kid == null ? null : byKid.get(kid);
+        return cert == null ? defaultCert : cert;
+    }
+
+    private String kidOf(String token) {
+        int dot = token.indexOf('.');
+        if ( dot <= 0 ) {
+            return null;
+        }
+        try {
+            JsonNode header = mapper.readTree(Base64.getUrlDecoder().decode(token.substring(0, dot)));
+            JsonNode kid = header.get("kid");
+            return kid == null || !kid.isTextual() ? null : kid.asText();
+        } catch (IOException | IllegalArgumentException e) {
+            // not a jwt we can read, verification will deny it
+            return null;
+        }
+    }
+
+    private void watch(Path dir) {
+        try {
+            while ( true ) {
+                WatchKey key = watcher.take();
+                // let a burst of changes (a configmap update is several) settle
+                Thread.sleep(SETTLE_MS);
+                do {
+                    key.pollEvents();
+                    key.reset();
+                } while ( (key = watcher.poll()) != null );
+                reload(dir);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    private void reload(Path dir) {
+        Map<String, Certificate> loaded = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + PEM_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try (InputStream in = Files.newInputStream(file)) {
+                    loaded.put(name.substring(0, name.length() - PEM_SUFFIX.length()), parse(in));
+                }
+            }
+        } catch (IOException | CertificateException e) {
+            Log.log(Level.WARNING, this, "Unable to load keys from {0}, keeping the {1} loaded before", dir, byKid.size(), e);
+            return;
+        }
+        if ( !loaded.equals(byKid) ) {
+            byKid = Collections.unmodifiableMap(loaded);
+            verifiedTokens.clear();
+            reloads.incrementAndGet();
+            Log.log(Level.INFO, this, "Loaded {0} jwt keys from {1}: {2}", loaded.size(), dir, loaded.keySet());
+        }
+    }
+
+    private static Certificate parse(InputStream pem) throws CertificateException {
+        return CertificateFactory.getInstance("X.509").generateCertificate(pem);
+    }
+
+    @Gauge(name = "jwtKeys_count", unit = MetricUnits.NONE,
+        tags = "label=signingKeys")
+    public long getKeyCount() {
+        return byKid.size() + (defaultCert == null ? 0 : 1);
+    }
+
+    @Gauge(name = "jwtKeys_reloads", unit = MetricUnits.NONE,
+        tags = "label=signingKeys")
+    public long getReloadCount() {
+        return reloads.get();
+    }
+}
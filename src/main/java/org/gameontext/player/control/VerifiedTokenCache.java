@@ -0,0 +1,182 @@
+package org.gameontext.player.control;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.MetricUnits;
+import org.eclipse.microprofile.metrics.annotation.Gauge;
+import org.gameontext.player.utils.BoundedCache;
+import org.gameontext.signed.SignedJWT;
+
+/**
+ * Claims of recently verified jwts, so a token that is presented again (as the
+ * mediator and system tokens are, constantly) isn't parsed and signature checked
+ * on every request (see PlayerFilter).
+ *
+ * Entries are keyed by the sha-256 of the token, so tokens themselves aren't held,
+ * and last until the token's exp, or at most JWT_CACHE_MAX_TTL seconds. At most
+ * JWT_CACHE_SIZE are held, least recently used go first.
+ *
+ * Only tokens that passed verification are cached. A denied token is verified again
+ * each time it is presented, so no result can be had without the signature checking
+ * out, and junk tokens can't push valid ones out of the cache.
+ *
+ * Each entry carries the generation of the signing keys it was verified against.
+ * clear() starts a new generation, so a verification that was under way while the
+ * keys changed can't leave behind a token signed by a key that has since gone.
+ */
+@ApplicationScoped
+public class VerifiedTokenCache {
+
+    @ConfigProperty( name = "JWT_CACHE_SIZE", defaultValue = "1000")
+    protected int maxSize;
+
+    @ConfigProperty( name = "JWT_CACHE_MAX_TTL", defaultValue = "300")
+    protected long maxTtlSeconds;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+
+    private BoundedCache<String, Verified> entries;
+
+    /**
+     * The claims PlayerFilter passes on from a verified token.
+     */
+    public static class Verified {
+        public final Object playerId;
+        public final Object story;
+        public final Object playerMode;
+        public final Object audience;
+        final long expires;
+        final long generation;
+
+        Verified(SignedJWT jwt, long expires, long generation) {
+            this.playerId = jwt.getClaim("sub");
+            this.story = jwt.getClaim("story");
+            this.playerMode = jwt.getClaim("playerMode");
+            this.audience = jwt.getClaim("aud");
+            this.expires = expires;
+            this.generation = generation;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        entries = new BoundedCache<>(maxSize);
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @return the current generation of the signing keys, read it before choosing the key
+     *   to verify a token with, and pass it to put
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @return the claims of the token if it was verified against the current keys
+     *   and hasn't expired since, or null
+     */
+    public Verified get(String token) {
+        if ( !isEnabled() || token == null ) {
+            return null;
+        }
+        String key = hash(token);
+        Verified v = entries.get(key);
+        if ( v != null && (System.currentTimeMillis() >= v.expires || v.generation != generation.get()) ) {
+            entries.remove(key, v);
+            v = null;
+        }
+        if ( v == null ) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return v;
+    }
+
+    /**
+     * Cache the claims of a token that has just passed verification, unless the keys
+     * have changed since 'generation' was read.
+     * @return the claims
+     */
+    public Verified put(String token, SignedJWT jwt, long generation) {
+        long now = System.currentTimeMillis();
+        long expires = now + TimeUnit.SECONDS.toMillis(maxTtlSeconds);
+        Object exp = jwt.getClaim("exp");
+        if ( exp instanceof Number ) {
+            expires = Math.min(expires, TimeUnit.SECONDS.toMillis(((Number) exp).longValue()));
+        } else if ( exp instanceof Date ) {
+            expires = Math.min(expires, ((Date) exp).getTime());
+        }
+        Verified v = new Verified(jwt, expires, generation);
+        if ( isEnabled() && token != null && expires > now && generation == this.generation.get() ) {
+            entries.put(hash(token), v);
+        }
+        return v;
+    }
+
+    /**
+     * Forget every token, for when the keys they were verified with change.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        if ( !isEnabled() ) {
+            return;
+        }
+        entries.clear();
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // every jvm is required to provide sha-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Gauge(name = "verifiedTokens_hits", unit = MetricUnits.NONE,
+        tags = "label=verifiedTokenCache")
+    public long getHits() {
+        return hits.get();
+    }
+
+    @Gauge(name = "verifiedTokens_misses", unit = MetricUnits.NONE,
+        tags = "label=verifiedTokenCache")
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Gauge(name = "verifiedTokens_hitRate", unit = MetricUnits.PERCENT,
+        tags = "label=verifiedTokenCache")
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : 100.0 * h / total;
+    }
+
+    @Gauge(name = "verifiedTokens_size", unit = MetricUnits.NONE,
+        tags = "label=verifiedTokenCache")
+    public long getSize() {
+        if ( !isEnabled() ) {
+            return 0;
+        }
+        return entries.size();
+    }
+}
@@ -0,0 +1,54 @@
+package org.gameontext.player.entity;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+
+@ApiModel(description = "Outcome of one player's location change within a batch")
+@JsonInclude(Include.NON_EMPTY)
+@RegisterForReflection
+public class LocationUpdateResult {
+
+    public static final String OK = "OK";
+    public static final String CONFLICT = "CONFLICT";
+    public static final String NOT_FOUND = "NOT_FOUND";
+
+    @ApiModelProperty(
+            value = "OK if the player was moved, CONFLICT if the player was not in the old location, NOT_FOUND if there is no such player",
+            example = "OK",
+            required = true)
+    protected String status;
+
+    @ApiModelProperty(
+            value = "player location after the batch was applied",
+            example = "room_id_1",
+            required = false)
+    protected String location;
+
+    public LocationUpdateResult() {
+    }
+
+    public LocationUpdateResult(String status, String location) {
+        this.status = status;
+        this.location = location;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+}
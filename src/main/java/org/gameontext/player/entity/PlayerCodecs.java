@@ -0,0 +1,290 @@
+package org.gameontext.player.entity;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+/**
+ * Hand written json codecs for the entities on the hot paths, so Jackson doesn't
+ * build (and run) reflective bean serializers for them.
+ *
+ * Registered with every ObjectMapper that handles these types: the JAX-RS provider,
+ * ektorp (see CouchInjector), the vertx couchdb client and the file store. The
+ * output matches the entities' Jackson annotations: empty strings are left out
+ * where the class is NON_EMPTY, and unknown properties are skipped where the class
+ * ignores them (otherwise they fail, if the mapper is set to fail on them).
+ * When a field is added to one of these entities, add it here too.
+ */
+public class PlayerCodecs extends SimpleModule {
+
+    private static final long serialVersionUID = 1L;
+
+    public PlayerCodecs() {
+        super("PlayerCodecs");
+        addSerializer(PlayerDbRecord.class, new Writer<PlayerDbRecord>(PlayerDbRecord.class) {
+            @Override
+            void fields(PlayerDbRecord p, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                nonEmpty(gen, "_id", p.id);
+                nonEmpty(gen, "_rev", p.rev);
+                nonEmpty(gen, "name", p.name);
+                nonEmpty(gen, "favoriteColor", p.favoriteColor);
+                nonEmpty(gen, "story", p.story);
+                nonEmpty(gen, "playerMode", p.playerMode);
+                nonEmpty(gen, "apiKey", p.getApiKey());
+                nonEmpty(gen, "location", p.getLocation());
+            }
+        });
+        addDeserializer(PlayerDbRecord.class, new Reader<PlayerDbRecord>(PlayerDbRecord.class, true) {
+            @Override
+            PlayerDbRecord create() {
+                return new PlayerDbRecord();
+            }
+
+            @Override
+            boolean field(PlayerDbRecord p, String name, JsonParser parser, DeserializationContext ctxt) throws IOException {
+                switch (name) {
+                    case "_id": p.setId(text(parser, ctxt)); return true;
+                    case "_rev": p.setRev(text(parser, ctxt)); return true;
+                    case "name": p.setName(text(parser, ctxt)); return true;
+                    case "favoriteColor": p.setFavoriteColor(text(parser, ctxt)); return true;
+                    case "story": p.setStory(text(parser, ctxt)); return true;
+                    case "playerMode": p.setPlayerMode(text(parser, ctxt)); return true;
+                    case "apiKey": p.setApiKey(text(parser, ctxt)); return true;
+                    case "location": p.setLocation(text(parser, ctxt)); return true;
+                    default: return false;
+                }
+            }
+        });
+
+        addSerializer(PlayerResponse.class, new Writer<PlayerResponse>(PlayerResponse.class) {
+            @Override
+            void fields(PlayerResponse p, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                nonEmpty(gen, "_id", p.id);
+                nonEmpty(gen, "_rev", p.rev);
+                nonEmpty(gen, "name", p.name);
+                nonEmpty(gen, "favoriteColor", p.favoriteColor);
+                if ( p.location != null ) {
+                    gen.writeFieldName("location");
+                    provider.findValueSerializer(PlayerLocation.class).serialize(p.location, gen, provider);
+                }
+                if ( p.credentials != null ) {
+                    gen.writeFieldName("credentials");
+                    provider.findValueSerializer(PlayerCredentials.class).serialize(p.credentials, gen, provider);
+                }
+                nonEmpty(gen, "story", p.story);
+                nonEmpty(gen, "playerMode", p.playerMode);
+            }
+        });
+        addDeserializer(PlayerResponse.class, new Reader<PlayerResponse>(PlayerResponse.class, true) {
+            @Override
+            PlayerResponse create() {
+                return new PlayerResponse();
+            }
+
+            @Override
+            boolean field(PlayerResponse p, String name, JsonParser parser, DeserializationContext ctxt) throws IOException {
+                switch (name) {
+                    case "_id": p.setId(text(parser, ctxt)); return true;
+                    case "_rev": p.setRev(text(parser, ctxt)); return true;
+                    case "name": p.setName(text(parser, ctxt)); return true;
+                    case "favoriteColor": p.setFavoriteColor(text(parser, ctxt)); return true;
+                    case "location": p.setLocation(value(PlayerLocation.class, parser, ctxt)); return true;
+                    case "credentials": p.setCredentials(value(PlayerCredentials.class, parser, ctxt)); return true;
+                    case "story": p.setStory(text(parser, ctxt)); return true;
+                    case "playerMode": p.setPlayerMode(text(parser, ctxt)); return true;
+                    default: return false;
+                }
+            }
+        });
+
+        addSerializer(PlayerArgument.class, new Writer<PlayerArgument>(PlayerArgument.class) {
+            @Override
+            void fields(PlayerArgument p, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                nonEmpty(gen, "_id", p.id);
+                nonEmpty(gen, "_rev", p.rev);
+                nonEmpty(gen, "name", p.name);
+                nonEmpty(gen, "favoriteColor", p.favoriteColor);
+            }
+        });
+        addDeserializer(PlayerArgument.class, new Reader<PlayerArgument>(PlayerArgument.class, true) {
+            @Override
+            PlayerArgument create() {
+                return new PlayerArgument();
+            }
+
+            @Override
+            boolean field(PlayerArgument p, String name, JsonParser parser, DeserializationContext ctxt) throws IOException {
+                switch (name) {
+                    case "_id": p.setId(text(parser, ctxt)); return true;
+                    case "_rev": p.setRev(text(parser, ctxt)); return true;
+                    case "name": p.setName(text(parser, ctxt)); return true;
+                    case "favoriteColor": p.setFavoriteColor(text(parser, ctxt)); return true;
+                    default: return false;
+                }
+            }
+        });
+
+        addSerializer(PlayerLocation.class, new Writer<PlayerLocation>(PlayerLocation.class) {
+            @Override
+            void fields(PlayerLocation l, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                gen.writeStringField("location", l.location);
+            }
+        });
+        addDeserializer(PlayerLocation.class, new Reader<PlayerLocation>(PlayerLocation.class, false) {
+            @Override
+            PlayerLocation create() {
+                return new PlayerLocation();
+            }
+
+            @Override
+            boolean field(PlayerLocation l, String name, JsonParser parser, DeserializationContext ctxt) throws IOException {
+                if ( "location".equals(name) ) {
+                    l.setLocation(text(parser, ctxt));
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        addSerializer(PlayerCredentials.class, new Writer<PlayerCredentials>(PlayerCredentials.class) {
+            @Override
+            void fields(PlayerCredentials c, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                nonEmpty(gen, "sharedSecret", c.sharedSecret);
+            }
+        });
+        addDeserializer(PlayerCredentials.class, new Reader<PlayerCredentials>(PlayerCredentials.class, true) {
+            @Override
+            PlayerCredentials create() {
+                return new PlayerCredentials();
+            }
+
+            @Override
+            boolean field(PlayerCredentials c, String name, JsonParser parser, DeserializationContext ctxt) throws IOException {
+                if ( "sharedSecret".equals(name) ) {
+                    c.setSharedSecret(text(parser, ctxt));
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        addSerializer(LocationChange.class, new Writer<LocationChange>(LocationChange.class) {
+            @Override
+            void fields(LocationChange c, JsonGenerator gen, SerializerProvider provider) throws IOException {
+                gen.writeStringField("oldLocation", c.oldLocation);
+                gen.writeStringField("newLocation", c.newLocation);
+                gen.writeStringField("origin", c.origin);
+            }
+        });
+        addDeserializer(LocationChange.class, new Reader<LocationChange>(LocationChange.class, false) {
+            @Override
+            LocationChange create() {
+                return new LocationChange();
+            }
+
+            @Override
+            boolean field(LocationChange c, String name, JsonParser parser, DeserializationContext ctxt) throws IOException {
+                switch (name) {
+                    case "oldLocation": c.setOldLocation(text(parser, ctxt)); return true;
+                    case "newLocation": c.setNewLocation(text(parser, ctxt)); return true;
+                    case "origin": c.setOrigin(text(parser, ctxt)); return true;
+                    default: return false;
+                }
+            }
+        });
+    }
+
+    /** writes one entity as a json object */
+    abstract static class Writer<T> extends StdSerializer<T> {
+        private static final long serialVersionUID = 1L;
+
+        Writer(Class<T> type) {
+            super(type);
+        }
+
+        abstract void fields(T value, JsonGenerator gen, SerializerProvider provider) throws IOException;
+
+        @Override
+        public void serialize(T value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject(value);
+            fields(value, gen, provider);
+            gen.writeEndObject();
+        }
+
+        /** the NON_EMPTY inclusion the entities declare */
+        static void nonEmpty(JsonGenerator gen, String name, String value) throws IOException {
+            if ( value != null && !value.isEmpty() ) {
+                gen.writeStringField(name, value);
+            }
+        }
+    }
+
+    /** reads one entity from a json object, field by field */
+    abstract static class Reader<T> extends StdDeserializer<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean ignoreUnknown;
+
+        Reader(Class<T> type, boolean ignoreUnknown) {
+            super(type);
+            this.ignoreUnknown = ignoreUnknown;
+        }
+
+        abstract T create();
+
+        /** @return false if the field isn't one of the entity's */
+        abstract boolean field(T value, String name, JsonParser parser, DeserializationContext ctxt) throws IOException;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T deserialize(JsonParser parser, DeserializationContext ctxt) throws IOException {
+            JsonToken t = parser.currentToken();
+            if ( t == JsonToken.START_OBJECT ) {
+                t = parser.nextToken();
+            } else if ( t != JsonToken.FIELD_NAME && t != JsonToken.END_OBJECT ) {
+                return (T) ctxt.handleUnexpectedToken(handledType(), parser);
+            }
+            T value = create();
+            for (; t == JsonToken.FIELD_NAME; t = parser.nextToken()) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                if ( !field(value, name, parser, ctxt) ) {
+                    if ( ignoreUnknown ) {
+                        parser.skipChildren();
+                    } else {
+                        ctxt.handleUnknownProperty(parser, this, value, name);
+                    }
+                }
+            }
+            return value;
+        }
+
+        static String text(JsonParser parser, DeserializationContext ctxt) throws IOException {
+            JsonToken t = parser.currentToken();
+            if ( t == JsonToken.VALUE_NULL ) {
+                return null;
+            }
+            if ( t.isScalarValue() ) {
+                return parser.getText();
+            }
+            return (String) ctxt.handleUnexpectedToken(String.class, parser);
+        }
+
+        static <V> V value(Class<V> type, JsonParser parser, DeserializationContext ctxt) throws IOException {
+            if ( parser.currentToken() == JsonToken.VALUE_NULL ) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            JsonDeserializer<V> reader = (JsonDeserializer<V>) ctxt.findRootValueDeserializer(ctxt.constructType(type));
+            return reader.deserialize(parser, ctxt);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.gameontext.player.entity;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.quarkus.runtime.annotations.RegisterForReflection;
+
+/**
+ * A player's location, held apart from the rest of the player record.
+ *
+ * With the split storage layout this is its own small document, with id
+ * loc:&lt;playerId&gt;, so moving a player doesn't rewrite (or bump the _rev of)
+ * their profile. With the embedded layout it is a view of the location
+ * field within the player record, which is kept in 'player'.
+ */
+@JsonInclude(Include.NON_EMPTY)
+@JsonIgnoreProperties(ignoreUnknown = true)
+@RegisterForReflection
+public class PlayerLocationRecord {
+
+    public static final String ID_PREFIX = "loc:";
+
+    @JsonProperty("_id")
+    protected String id;
+
+    @JsonProperty("_rev")
+    protected String rev;
+
+    protected String location;
+
+    @JsonIgnore
+    protected PlayerDbRecord player;
+
+    @JsonCreator
+    public PlayerLocationRecord() {}
+
+    /**
+     * @return the location held within a player record (embedded layout)
+     */
+    public static PlayerLocationRecord embeddedIn(PlayerDbRecord player) {
+        PlayerLocationRecord l = new PlayerLocationRecord();
+        l.id = player.getId();
+        l.rev = player.getRev();
+        l.location = player.getLocation();
+        l.player = player;
+        return l;
+    }
+
+    /**
+     * @return a new location document (split layout), starting from the
+     *   location still held in the player record, if any.
+     */
+    public static PlayerLocationRecord splitFrom(PlayerDbRecord player) {
+        PlayerLocationRecord l = new PlayerLocationRecord();
+        l.id = idFor(player.getId());
+        l.location = player.getLocation();
+        return l;
+    }
+
+    public static String idFor(String playerId) {
+        return ID_PREFIX + playerId;
+    }
+
+    public static boolean isLocationId(String docId) {
+        return docId != null && docId.startsWith(ID_PREFIX);
+    }
+
+    public static String playerIdOf(String docId) {
+        return isLocationId(docId) ? docId.substring(ID_PREFIX.length()) : docId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRev() {
+        return rev;
+    }
+
+    public void setRev(String rev) {
+        this.rev = rev;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    @JsonIgnore
+    public PlayerDbRecord getPlayer() {
+        return player;
+    }
+
+    @JsonIgnore
+    public String getPlayerId() {
+        return playerIdOf(id);
+    }
+
+    /**
+     * @return true if this is a separate location document, rather than part of a player record
+     */
+    @JsonIgnore
+    public boolean isSeparate() {
+        return isLocationId(id);
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerLocationRecord [id=" + id + ", revision=" + rev + ", location=" + location + "]";
+    }
+}
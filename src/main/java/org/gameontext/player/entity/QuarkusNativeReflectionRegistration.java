@@ -2,7 +2,7 @@ package org.gameontext.player.entity;
 
 import io.quarkus.runtime.annotations.RegisterForReflection;
 
-@RegisterForReflection(ignoreNested = false, classNames = {"org.ektorp.impl.QueryResultParser"})
+@RegisterForReflection(ignoreNested = false, classNames = {"org.ektorp.impl.QueryResultParser", "org.ektorp.support.DesignDocument", "org.ektorp.support.DesignDocument$View"})
 public class QuarkusNativeReflectionRegistration {
     
 }
@@ -0,0 +1,219 @@
+package org.gameontext.player.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * A bounded map for the caches read on request paths.
+ *
+ * Entries are kept in a ConcurrentHashMap, so reads take no lock and don't contend
+ * with each other. Once the bound is passed, entries are evicted in roughly least
+ * recently used order (the clock algorithm): entries queue in the order they were
+ * added, a read marks its entry as used, and the evictor requeues a used entry
+ * (clearing the mark) instead of evicting it, so only entries not read since their
+ * last pass go.
+ *
+ * The bound is on the total weight of the entries, which is one per entry unless
+ * a weigher is given. Values should be immutable, they are handed out as held.
+ */
+public class BoundedCache<K, V> {
+
+    /** queued entries allowed beyond the live ones before removed entries are swept out */
+    private static final int SWEEP_SLACK = 64;
+
+    private static class Node<K, V> {
+        final K key;
+        volatile V value;
+        volatile long weight;
+        volatile boolean used;
+
+        Node(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node<K, V>> clock = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong weight = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * @param maxSize most entries held
+     */
+    public BoundedCache(long maxSize) {
+        this(maxSize, value -> 1);
+    }
+
+    /**
+     * @param maxWeight most total weight held
+     * @param weigher the weight of a value
+     */
+    public BoundedCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return the value held for the key, or null. The entry counts as used.
+     */
+    public V get(K key) {
+        Node<K, V> n = map.get(key);
+        if ( n == null ) {
+            return null;
+        }
+        if ( !n.used ) {
+            // only write when it changes, so reads of a hot entry don't bounce its cache line
+            n.used = true;
+        }
+        return n.value;
+    }
+
+    /**
+     * @return the value held for the key, or null, without counting as a use
+     */
+    public V peek(K key) {
+        Node<K, V> n = map.get(key);
+        return n == null ? null : n.value;
+    }
+
+    public void put(K key, V value) {
+        update(key, current -> value);
+    }
+
+    /**
+     * Replace the value held for the key with fn(current value, or null if there is none),
+     * atomically with respect to other updates of the key. If fn returns null, the entry is removed.
+     */
+    public void update(K key, UnaryOperator<V> fn) {
+        map.compute(key, (k, current) -> {
+            V next = fn.apply(current == null ? null : current.value);
+            if ( next == null ) {
+                if ( current != null ) {
+                    weight.addAndGet(-current.weight);
+                }
+                return null;
+            }
+            if ( current != null && current.value == next ) {
+                return current;
+            }
+            long w = weigher.applyAsLong(next);
+            if ( current == null ) {
+                Node<K, V> added = new Node<>(k, next, w);
+                weight.addAndGet(w);
+                clock.add(added);
+                queued.incrementAndGet();
+                return added;
+            }
+            weight.addAndGet(w - current.weight);
+            current.value = next;
+            current.weight = w;
+            return current;
+        });
+        evict();
+    }
+
+    public void remove(K key) {
+        Node<K, V> n = map.remove(key);
+        if ( n != null ) {
+            weight.addAndGet(-n.weight);
+        }
+        sweepIfNeeded();
+    }
+
+    /**
+     * Remove the entry only if it still holds this value (compared by identity).
+     */
+    public void remove(K key, V value) {
+        update(key, current -> current == value ? null : current);
+        sweepIfNeeded();
+    }
+
+    public void clear() {
+        for (K key : map.keySet()) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Hand every entry to the consumer, entries added or removed meanwhile may or may not be seen.
+     */
+    public void forEach(BiConsumer<K, V> consumer) {
+        map.forEach((key, n) -> consumer.accept(key, n.value));
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @return entries evicted to stay within the bound (not those removed)
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private void evict() {
+        while ( weight.get() > maxWeight ) {
+            Node<K, V> n = clock.poll();
+            if ( n == null ) {
+                return;
+            }
+            queued.decrementAndGet();
+            if ( map.get(n.key) != n ) {
+                // removed since it was queued
+                continue;
+            }
+            if ( n.used ) {
+                // a second chance, it goes on the next pass unless it is read again
+                n.used = false;
+                clock.add(n);
+                queued.incrementAndGet();
+                continue;
+            }
+            if ( map.remove(n.key, n) ) {
+                weight.addAndGet(-n.weight);
+                evictions.incrementAndGet();
+            }
+        }
+        sweepIfNeeded();
+    }
+
+    /** removed entries stay queued until the evictor reaches them, drop them if they pile up */
+    private void sweepIfNeeded() {
+        if ( queued.get() <= 2 * map.size() + SWEEP_SLACK || !sweeping.compareAndSet(false, true) ) {
+            return;
+        }
+        try {
+            for (int i = queued.get(); i > 0; i--) {
+                Node<K, V> n = clock.poll();
+                if ( n == null ) {
+                    break;
+                }
+                if ( map.get(n.key) == n ) {
+                    clock.add(n);
+                } else {
+                    queued.decrementAndGet();
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.gameontext.player.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The most recent latencies of some operation, and a percentile over them.
+ *
+ * Recording is lock free. The percentile is recomputed (by sorting a copy of the
+ * window) once every RECOMPUTE_EVERY samples, and is cheap to read in between.
+ */
+public class LatencyWindow {
+
+    private static final int RECOMPUTE_EVERY = 64;
+
+    private final AtomicLongArray samples;
+    private final AtomicLong count = new AtomicLong();
+    private final double percentile;
+    private volatile long current;
+
+    /**
+     * @param size number of samples kept
+     * @param percentile 0-100, the percentile reported by getPercentileMillis
+     * @param initialMillis reported until the window is full
+     */
+    public LatencyWindow(int size, double percentile, long initialMillis) {
+        this.samples = new AtomicLongArray(size);
+        this.percentile = percentile;
+        this.current = initialMillis;
+    }
+
+    public void record(long nanos) {
+        long n = count.getAndIncrement();
+        samples.set((int) (n % samples.length()), nanos);
+        if ( n + 1 >= samples.length() && (n + 1) % RECOMPUTE_EVERY == 0 ) {
+            long[] sorted = new long[samples.length()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = samples.get(i);
+            }
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            current = TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, Math.min(rank, sorted.length - 1))]);
+        }
+    }
+
+    public long getPercentileMillis() {
+        return current;
+    }
+}
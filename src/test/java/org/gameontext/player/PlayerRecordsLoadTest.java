@@ -0,0 +1,230 @@
+package org.gameontext.player;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.core.Response;
+
+import org.ektorp.CouchDbConnector;
+import org.gameontext.player.control.LocationWriteBehind;
+import org.gameontext.player.control.MemoryPlayerStore;
+import org.gameontext.player.control.PlayerAccountModificationException;
+import org.gameontext.player.control.PlayerStore;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+
+/**
+ * A load harness for COUCHDB_OFFLOAD, against a stub couchdb connector that takes a
+ * fixed time to answer each read.
+ *
+ * Thousands of concurrent reads should be limited only by the connection pool, and
+ * complete off the connection threads. Past the queue bound they should fail at once,
+ * and reads that time out while queued should never reach couchdb. Callers blocked
+ * on the request (worker) pool must not hold up the results they are waiting for.
+ */
+public class PlayerRecordsLoadTest {
+
+    private static final int CLIENTS = 2000;
+    private static final int CONNECTIONS = 8;
+    private static final long LATENCY_MS = 5;
+
+    /** a connector that answers get (and nothing else) after a delay, and counts what it sees */
+    static class StubCouch {
+        final long latencyMs;
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        final List<String> threads = new CopyOnWriteArrayList<>();
+
+        StubCouch(long latencyMs) {
+            this.latencyMs = latencyMs;
+        }
+
+        CouchDbConnector connector() {
+            return (CouchDbConnector) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] { CouchDbConnector.class }, (proxy, method, args) -> {
+                if ( !method.getName().equals("get") || args.length != 2 ) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                calls.incrementAndGet();
+                threads.add(Thread.currentThread().getName());
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(latencyMs);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+                PlayerDbRecord p = new PlayerDbRecord();
+                p.setId((String) args[1]);
+                p.setRev("1-stub");
+                return p;
+            });
+        }
+    }
+
+    private PlayerRecords records;
+
+    private PlayerRecords records(StubCouch couch, int connections, int queue, long timeoutMs) {
+        ReactiveCouchDbClient reactiveDb = new ReactiveCouchDbClient();
+        reactiveDb.clientType = "ektorp";
+
+        records = new PlayerRecords();
+        records.db = couch.connector();
+        records.reactiveDb = reactiveDb;
+        records.store = new MemoryPlayerStore();
+        records.writeBehind = new LocationWriteBehind();
+        records.locationStorage = PlayerRecords.EMBEDDED;
+        records.offload = true;
+        records.maxConnections = connections;
+        records.offloadQueue = queue;
+        records.requestTimeout = timeoutMs;
+        records.init();
+        return records;
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if ( records != null ) {
+            records.close();
+        }
+    }
+
+    @Test
+    public void connectionPoolIsTheLimit() {
+        StubCouch couch = new StubCouch(LATENCY_MS);
+        PlayerRecords records = records(couch, CONNECTIONS, CLIENTS, 0);
+
+        List<CompletableFuture<String>> reads = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            reads.add(records.load("player" + i).thenApply(p -> Thread.currentThread().getName())
+                    .toCompletableFuture());
+        }
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[0])).join();
+
+        assertEquals(CLIENTS, couch.calls.get());
+        assertEquals(CONNECTIONS, couch.maxInFlight.get(), "concurrent couchdb calls");
+        for (CompletableFuture<String> read : reads) {
+            assertFalse(read.join().startsWith("playerdb-ektorp-"), "continuation ran on a connection thread");
+        }
+    }
+
+    /**
+     * Every thread of the worker pool (the pool Quarkus runs blocking resource methods on)
+     * is parked waiting for a read, results must still come back.
+     */
+    @Test
+    public void blockedWorkersDontStarveResults() throws Exception {
+        int workers = 4;
+        ExecutorService workerPool = Executors.newFixedThreadPool(workers);
+        Infrastructure.setDefaultExecutor(workerPool);
+        try {
+            StubCouch couch = new StubCouch(LATENCY_MS);
+            PlayerRecords records = records(couch, 2, CLIENTS, 0);
+
+            List<Future<PlayerDbRecord>> calls = new ArrayList<>();
+            for (int i = 0; i < workers * 10; i++) {
+                String id = "player" + i;
+                calls.add(workerPool.submit(() -> PlayerStore.await(records.load(id))));
+            }
+            for (int i = 0; i < calls.size(); i++) {
+                assertEquals("player" + i, calls.get(i).get(10, TimeUnit.SECONDS).getId());
+            }
+        } finally {
+            Infrastructure.setDefaultExecutor();
+            workerPool.shutdownNow();
+        }
+    }
+
+    /** a caller that waits anyway makes its calls itself, it doesn't queue them */
+    @Test
+    public void waitingCallersCallInline() {
+        StubCouch couch = new StubCouch(LATENCY_MS);
+        PlayerRecords records = records(couch, 1, 1, 0);
+
+        PlayerDbRecord p = records.waitFor(() -> records.load("player1"));
+
+        assertEquals("player1", p.getId());
+        assertEquals(List.of(Thread.currentThread().getName()), couch.threads);
+    }
+
+    @Test
+    public void overloadFailsFast() {
+        int connections = 4;
+        int queue = 50;
+        StubCouch couch = new StubCouch(20);
+        PlayerRecords records = records(couch, connections, queue, 0);
+
+        List<CompletableFuture<PlayerDbRecord>> reads = new ArrayList<>();
+        int refusedAtOnce = 0;
+        for (int i = 0; i < CLIENTS; i++) {
+            CompletableFuture<PlayerDbRecord> read = records.load("player" + i).toCompletableFuture();
+            if ( read.isCompletedExceptionally() ) {
+                refusedAtOnce++;
+            }
+            reads.add(read);
+        }
+
+        int ok = 0;
+        int unavailable = 0;
+        for (CompletableFuture<PlayerDbRecord> read : reads) {
+            try {
+                read.join();
+                ok++;
+            } catch (CompletionException e) {
+                PlayerAccountModificationException cause = (PlayerAccountModificationException) e.getCause();
+                assertEquals(Response.Status.SERVICE_UNAVAILABLE, cause.getStatus());
+                unavailable++;
+            }
+        }
+
+        assertEquals(CLIENTS, ok + unavailable);
+        assertEquals(unavailable, refusedAtOnce, "refused reads fail before returning");
+        assertEquals(unavailable, records.getOffloadRejected());
+        assertEquals(ok, couch.calls.get());
+        assertTrue(ok >= connections + queue, "every read that fit in the queue was served");
+        assertTrue(unavailable > CLIENTS / 2, "most reads beyond the queue bound are refused, " + ok + " were served");
+    }
+
+    @Test
+    public void timedOutCallsAreNotSent() throws InterruptedException {
+        int reads = 5;
+        StubCouch couch = new StubCouch(200);
+        PlayerRecords records = records(couch, 1, reads, 50);
+
+        List<CompletableFuture<PlayerDbRecord>> pending = new ArrayList<>();
+        for (int i = 0; i < reads; i++) {
+            pending.add(records.load("player" + i).toCompletableFuture());
+        }
+        for (CompletableFuture<PlayerDbRecord> read : pending) {
+            try {
+                read.join();
+            } catch (CompletionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException, e.getCause().toString());
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ( records.getOffloadDropped() < reads - 1 && System.nanoTime() < deadline ) {
+            Thread.sleep(10);
+        }
+        assertEquals(reads - 1, records.getOffloadDropped());
+        assertEquals(1, couch.calls.get(), "only the read that started before its deadline reached couchdb");
+    }
+}
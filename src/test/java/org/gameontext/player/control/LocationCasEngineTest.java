@@ -0,0 +1,183 @@
+package org.gameontext.player.control;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gameontext.player.entity.LocationChange;
+import org.gameontext.player.entity.LocationUpdateResult;
+import org.gameontext.player.entity.PlayerDbRecord;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Contended moves through the compare-and-set engine, on the memory store.
+ *
+ * Every round, several movers race to move each player out of the same old location,
+ * so exactly one should win and the rest see a real conflict. Meanwhile the store bumps
+ * the player's revision (a profile update) under every other write, so the engine also
+ * has to retry stale revisions without reporting them as conflicts or losing either write.
+ */
+public class LocationCasEngineTest {
+
+    private static final int PLAYERS = 40;
+    private static final int MOVERS = 4;
+    private static final int ROUNDS = 25;
+
+    /** a memory store where another writer updates the player just before every other write */
+    static class InterferingStore extends MemoryPlayerStore {
+        final Map<String, AtomicInteger> writes = new ConcurrentHashMap<>();
+        final Map<String, AtomicInteger> touches = new ConcurrentHashMap<>();
+        final AtomicLong staleWrites = new AtomicLong();
+
+        @Override
+        public CompletionStage<PlayerDbRecord> update(PlayerDbRecord player) {
+            String id = player.getId();
+            if ( writes.computeIfAbsent(id, k -> new AtomicInteger()).getAndIncrement() % 2 == 0 ) {
+                int touch = touches.computeIfAbsent(id, k -> new AtomicInteger()).incrementAndGet();
+                PlayerDbRecord other = copy(players.get(id));
+                other.setStory("touched " + touch);
+                super.update(other);
+                staleWrites.incrementAndGet();
+            }
+            return super.update(player);
+        }
+    }
+
+    private InterferingStore store;
+    private LocationCasEngine engine;
+    private ExecutorService movers;
+
+    @BeforeEach
+    public void setUp() {
+        store = new InterferingStore();
+        for (int i = 0; i < PLAYERS; i++) {
+            PlayerDbRecord p = new PlayerDbRecord();
+            p.setId("player" + i);
+            p.setName("Player " + i);
+            p.setLocation(location(i, -1, 0));
+            store.create(p);
+        }
+
+        PlayerCache cache = new PlayerCache();
+        cache.maxSize = 100;
+        cache.ttlSeconds = 300;
+        cache.store = store;
+        cache.init();
+
+        RoomOccupancyIndex index = new RoomOccupancyIndex();
+        index.enabled = false;
+
+        LocationWriteBehind writeBehind = new LocationWriteBehind();
+        writeBehind.enabled = false;
+        writeBehind.store = store;
+
+        engine = new LocationCasEngine();
+        engine.store = store;
+        engine.cache = cache;
+        engine.index = index;
+        engine.writeBehind = writeBehind;
+        // fewer stripes than players, so moves also queue behind other players'
+        engine.stripeCount = 8;
+        engine.maxRetries = 5;
+        engine.init();
+
+        movers = Executors.newFixedThreadPool(MOVERS * 2);
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        movers.shutdownNow();
+        movers.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void oneWinnerPerOldLocation() throws Exception {
+        String[] current = new String[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            current[i] = location(i, -1, 0);
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<List<CompletableFuture<LocationUpdateResult>>> results = new ArrayList<>();
+            for (int i = 0; i < PLAYERS; i++) {
+                List<CompletableFuture<LocationUpdateResult>> contenders = new ArrayList<>();
+                for (int m = 0; m < MOVERS; m++) {
+                    String id = "player" + i;
+                    LocationChange change = change(current[i], location(i, round, m));
+                    contenders.add(CompletableFuture.supplyAsync(() -> {
+                        awaitQuietly(start);
+                        return engine.move(id, change);
+                    }, movers).thenCompose(stage -> stage));
+                }
+                results.add(contenders);
+            }
+            start.countDown();
+
+            for (int i = 0; i < PLAYERS; i++) {
+                String winner = null;
+                List<LocationUpdateResult> outcomes = new ArrayList<>();
+                for (CompletableFuture<LocationUpdateResult> f : results.get(i)) {
+                    LocationUpdateResult r = f.get(30, TimeUnit.SECONDS);
+                    outcomes.add(r);
+                    if ( LocationUpdateResult.OK.equals(r.getStatus()) ) {
+                        assertEquals(null, winner, "two moves out of " + current[i] + " succeeded");
+                        winner = r.getLocation();
+                    }
+                }
+                assertEquals(true, winner != null, "no move out of " + current[i] + " succeeded");
+                for (LocationUpdateResult r : outcomes) {
+                    if ( !LocationUpdateResult.OK.equals(r.getStatus()) ) {
+                        assertEquals(LocationUpdateResult.CONFLICT, r.getStatus());
+                        assertEquals(winner, r.getLocation(), "a conflict should report where the winner went");
+                    }
+                }
+                current[i] = winner;
+            }
+        }
+
+        for (int i = 0; i < PLAYERS; i++) {
+            PlayerDbRecord p = PlayerStore.await(store.get("player" + i));
+            // neither the moves nor the interfering profile updates were lost
+            assertEquals(current[i], p.getLocation());
+            assertEquals("touched " + store.touches.get(p.getId()).get(), p.getStory());
+        }
+
+        assertEquals((long) PLAYERS * ROUNDS * (MOVERS - 1), engine.getConflicts());
+        // every stale revision was retried, and none of them counted as a conflict
+        assertEquals((long) PLAYERS * ROUNDS, store.staleWrites.get());
+        assertEquals(store.staleWrites.get(), engine.getRetries());
+    }
+
+    private static String location(int player, int round, int mover) {
+        return "room-" + player + "-" + round + "-" + mover;
+    }
+
+    private static LocationChange change(String from, String to) {
+        LocationChange change = new LocationChange();
+        change.setOldLocation(from);
+        change.setNewLocation(to);
+        return change;
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
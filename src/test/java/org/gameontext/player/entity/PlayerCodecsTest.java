@@ -0,0 +1,163 @@
+package org.gameontext.player.entity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The hand written codecs against Jackson's reflective (annotation driven) handling
+ * of the same entities: every input should read, and write back, to the same json.
+ *
+ * Inputs cover full records, redacted ones (no credentials), sparse ones (missing,
+ * null and empty fields) and unknown fields. A field added to an entity but not
+ * to PlayerCodecs shows up here as a difference.
+ */
+public class PlayerCodecsTest {
+
+    private final ObjectMapper plain = new ObjectMapper();
+    private final ObjectMapper codecs = new ObjectMapper().registerModule(new PlayerCodecs());
+
+    private static final String[] DB_RECORDS = {
+        "{\"_id\":\"dummy.DevUser\",\"_rev\":\"3-abc\",\"name\":\"DevUser\",\"favoriteColor\":\"Pink\","
+            + "\"story\":\"tale\",\"playerMode\":\"default\",\"apiKey\":\"secret\",\"location\":\"room1\"}",
+        "{\"_id\":\"dummy.DevUser\",\"name\":\"DevUser\",\"favoriteColor\":\"Pink\"}",
+        "{\"_id\":\"dummy.DevUser\",\"_rev\":null,\"name\":\"\",\"apiKey\":null,\"location\":\"\"}",
+        "{}",
+        "{\"_id\":\"dummy.DevUser\",\"type\":\"player\",\"extra\":{\"nested\":[1,{\"a\":null}]},\"name\":\"DevUser\"}",
+    };
+
+    private static final String[] RESPONSES = {
+        "{\"_id\":\"dummy.DevUser\",\"_rev\":\"3-abc\",\"name\":\"DevUser\",\"favoriteColor\":\"Pink\","
+            + "\"location\":{\"location\":\"room1\"},\"credentials\":{\"sharedSecret\":\"secret\"},"
+            + "\"story\":\"tale\",\"playerMode\":\"default\"}",
+        "{\"_id\":\"dummy.DevUser\",\"_rev\":\"3-abc\",\"name\":\"DevUser\",\"favoriteColor\":\"Pink\","
+            + "\"location\":{\"location\":\"room1\"}}",
+        "{\"_id\":\"dummy.DevUser\",\"location\":null,\"credentials\":{},\"story\":\"\"}",
+        "{\"location\":{\"location\":null},\"credentials\":{\"sharedSecret\":\"\"}}",
+        "{}",
+        "{\"_id\":\"dummy.DevUser\",\"unknown\":[\"a\",\"b\"],\"credentials\":{\"sharedSecret\":\"s\",\"other\":1}}",
+    };
+
+    private static final String[] ARGUMENTS = {
+        "{\"_id\":\"dummy.DevUser\",\"_rev\":\"3-abc\",\"name\":\"DevUser\",\"favoriteColor\":\"Pink\"}",
+        "{\"name\":\"DevUser\",\"favoriteColor\":\"\"}",
+        "{\"_id\":null}",
+        "{}",
+        "{\"_id\":\"dummy.DevUser\",\"apiKey\":\"not taken\",\"location\":{\"location\":\"room1\"}}",
+    };
+
+    private static final String[] CREDENTIALS = {
+        "{\"sharedSecret\":\"secret\"}",
+        "{\"sharedSecret\":\"\"}",
+        "{\"sharedSecret\":null}",
+        "{}",
+        "{\"sharedSecret\":\"secret\",\"unknown\":true}",
+    };
+
+    private static final String[] LOCATIONS = {
+        "{\"location\":\"room1\"}",
+        "{\"location\":\"\"}",
+        "{\"location\":null}",
+        "{}",
+    };
+
+    private static final String[] LOCATION_CHANGES = {
+        "{\"oldLocation\":\"room1\",\"newLocation\":\"room2\",\"origin\":\"room1\"}",
+        "{\"oldLocation\":\"room1\",\"newLocation\":\"room2\"}",
+        "{\"oldLocation\":null,\"newLocation\":\"\",\"origin\":null}",
+        "{}",
+    };
+
+    @Test
+    public void playerDbRecord() throws Exception {
+        for (String json : DB_RECORDS) {
+            assertSameJson(PlayerDbRecord.class, json);
+        }
+    }
+
+    @Test
+    public void playerResponse() throws Exception {
+        for (String json : RESPONSES) {
+            assertSameJson(PlayerResponse.class, json);
+        }
+    }
+
+    @Test
+    public void playerArgument() throws Exception {
+        for (String json : ARGUMENTS) {
+            assertSameJson(PlayerArgument.class, json);
+        }
+    }
+
+    @Test
+    public void playerCredentials() throws Exception {
+        for (String json : CREDENTIALS) {
+            assertSameJson(PlayerCredentials.class, json);
+        }
+    }
+
+    @Test
+    public void playerLocation() throws Exception {
+        for (String json : LOCATIONS) {
+            assertSameJson(PlayerLocation.class, json);
+        }
+        assertBothReject(PlayerLocation.class, "{\"location\":\"room1\",\"unknown\":1}");
+    }
+
+    @Test
+    public void locationChange() throws Exception {
+        for (String json : LOCATION_CHANGES) {
+            assertSameJson(LocationChange.class, json);
+        }
+        assertBothReject(LocationChange.class, "{\"oldLocation\":\"room1\",\"unknown\":1}");
+    }
+
+    /** responses as the resources build them, rather than as read */
+    @Test
+    public void builtResponses() throws Exception {
+        PlayerDbRecord db = plain.readValue(DB_RECORDS[0], PlayerDbRecord.class);
+
+        PlayerResponse full = new PlayerResponse(db);
+        assertSameTree(full);
+
+        PlayerResponse redacted = new PlayerResponse(db);
+        redacted.setCredentials(null);
+        assertSameTree(redacted);
+
+        PlayerResponse sparse = new PlayerResponse(new PlayerDbRecord());
+        assertSameTree(sparse);
+
+        db.removeProtected();
+        assertSameTree(db);
+    }
+
+    private void assertSameTree(Object value) {
+        JsonNode expected = plain.valueToTree(value);
+        JsonNode actual = codecs.valueToTree(value);
+        assertEquals(expected, actual, value.getClass().getSimpleName());
+    }
+
+    /**
+     * Read with each mapper and write with each, all four combinations should give
+     * the json that Jackson alone gives.
+     */
+    private <T> void assertSameJson(Class<T> type, String json) throws Exception {
+        T byPlain = plain.readValue(json, type);
+        T byCodecs = codecs.readValue(json, type);
+
+        JsonNode expected = plain.valueToTree(byPlain);
+        assertEquals(expected, codecs.valueToTree(byCodecs), type.getSimpleName() + " round trip of " + json);
+        assertEquals(expected, codecs.valueToTree(byPlain), type.getSimpleName() + " written from " + json);
+        assertEquals(expected, plain.valueToTree(byCodecs), type.getSimpleName() + " read from " + json);
+    }
+
+    private void assertBothReject(Class<?> type, String json) {
+        assertThrows(UnrecognizedPropertyException.class, () -> plain.readValue(json, type));
+        assertThrows(UnrecognizedPropertyException.class, () -> codecs.readValue(json, type));
+    }
+}